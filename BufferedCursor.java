@@ -0,0 +1,78 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Itineraries copied out of another cursor, so that they can be read after the connection
+ * the source was reading from has gone back to its pool.
+ */
+public class BufferedCursor implements ItineraryCursor {
+    private final List<int[]> fids = new ArrayList<>();
+    private final List<String[]> flights = new ArrayList<>();
+    private final List<int[]> timeAndDay = new ArrayList<>();
+    private int index = -1;
+
+    /**
+     * Reads up to {@code limit} itineraries from {@code source} and closes it.
+     */
+    public static BufferedCursor copy(ItineraryCursor source, int limit) throws SQLException {
+        BufferedCursor copy = new BufferedCursor();
+        ResponseWriter out = new ResponseWriter();
+        try {
+            while (copy.fids.size() < limit && source.next()) {
+                int n = source.flightCount();
+                int[] f = new int[n];
+                String[] text = new String[n];
+                for (int leg = 0; leg < n; leg++) {
+                    f[leg] = source.fid(leg);
+                    out.reset();
+                    source.writeFlight(leg, out);
+                    text[leg] = out.toString();
+                }
+                copy.fids.add(f);
+                copy.flights.add(text);
+                copy.timeAndDay.add(new int[] {source.totalTime(), source.dayOfMonth()});
+            }
+        } finally {
+            source.close();
+        }
+        return copy;
+    }
+
+    /** @return an empty cursor */
+    public static BufferedCursor empty() {
+        return new BufferedCursor();
+    }
+
+    public boolean next() {
+        if (index + 1 >= fids.size()) {
+            return false;
+        }
+        index++;
+        return true;
+    }
+
+    public int flightCount() {
+        return fids.get(index).length;
+    }
+
+    public int totalTime() {
+        return timeAndDay.get(index)[0];
+    }
+
+    public int dayOfMonth() {
+        return timeAndDay.get(index)[1];
+    }
+
+    public int fid(int leg) {
+        return fids.get(index)[leg];
+    }
+
+    public void writeFlight(int leg, ResponseWriter out) {
+        out.append(flights.get(index)[leg]);
+    }
+
+    public void close() {
+        index = fids.size();
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a script of commands for one session, such as the commands of a {@code cases/} file,
+ * and returns the responses in order.
+ *
+ * Commands run one after the other, except for runs of consecutive reads: searches and
+ * reservation listings. Nothing in such a run changes the session, so
+ * <ul>
+ * <li>a read repeated within the run is executed once and its response reused,</li>
+ * <li>every search but the last runs on a lookahead session of its own, all of them at
+ * the same time as the session's own reads, and</li>
+ * <li>the last search runs on the session, which keeps its itineraries for booking.</li>
+ * </ul>
+ * Lookahead sessions share a pool of {@code flightservice.pipeline_connections}
+ * connections; without one, only repeated reads are saved. A command that throws gets an
+ * "Error: ..." response and the script goes on.
+ */
+public class CommandPipeline {
+    private static CommandPipeline shared;
+
+    private final String configFilename;
+    private final ConnectionPool pool;
+    private final ExecutorService executor;
+    private final ConcurrentLinkedQueue<Query> lookahead = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Returns the JVM-wide pipeline configured by {@code flightservice.pipeline_connections},
+     * creating it on first use.
+     */
+    public static synchronized CommandPipeline shared(String configFilename) throws IOException {
+        if (shared == null) {
+            Properties config = new Properties();
+            try (FileInputStream in = new FileInputStream(configFilename)) {
+                config.load(in);
+            }
+            int connections = Integer.parseInt(config.getProperty("flightservice.pipeline_connections", "0").trim());
+            shared = new CommandPipeline(configFilename,
+                connections > 0 ? new ConnectionPool(configFilename, connections, 30000) : null);
+        }
+        return shared;
+    }
+
+    /**
+     * @param pool connections of the lookahead sessions, null to run every command on the session
+     */
+    public CommandPipeline(String configFilename, ConnectionPool pool) {
+        this.configFilename = configFilename;
+        this.pool = pool;
+        this.executor = pool == null ? null : Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "command-pipeline");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Executes {@code commands} on session {@code q}.
+     *
+     * @return one response per command, the same as {@link FlightService#execute} would return
+     */
+    public List<String> execute(Query q, List<String> commands) {
+        List<String> responses = new ArrayList<>(commands.size());
+        int i = 0;
+        while (i < commands.size()) {
+            int end = i;
+            while (end < commands.size() && isRead(commands.get(end))) {
+                end++;
+            }
+            if (end - i > 1) {
+                responses.addAll(executeReads(q, commands.subList(i, end)));
+                i = end;
+            } else {
+                responses.add(run(q, commands.get(i)));
+                i++;
+            }
+        }
+        return responses;
+    }
+
+    private List<String> executeReads(Query q, List<String> reads) {
+        // the last search decides which itineraries the session can book afterwards
+        int last = -1;
+        for (int i = 0; i < reads.size(); i++) {
+            if (isSearch(reads.get(i))) {
+                last = i;
+            }
+        }
+        String lastSearch = last >= 0 ? key(reads.get(last)) : null;
+
+        Map<String, Future<String>> prefetched = new HashMap<>();
+        if (pool != null) {
+            for (String command : reads) {
+                String key = key(command);
+                if (isSearch(command) && !key.equals(lastSearch) && !prefetched.containsKey(key)) {
+                    prefetched.put(key, executor.submit(() -> onLookahead(command)));
+                }
+            }
+        }
+
+        Map<String, String> done = new HashMap<>();
+        for (String command : reads) {
+            String key = key(command);
+            if (!key.equals(lastSearch) && !prefetched.containsKey(key) && !done.containsKey(key)) {
+                done.put(key, run(q, command));
+            }
+        }
+        if (lastSearch != null) {
+            done.put(lastSearch, run(q, reads.get(last)));
+        }
+        List<String> responses = new ArrayList<>(reads.size());
+        for (String command : reads) {
+            String key = key(command);
+            String response = done.get(key);
+            if (response == null) {
+                response = await(prefetched.get(key));
+                done.put(key, response);
+            }
+            responses.add(response);
+        }
+        return responses;
+    }
+
+    private String onLookahead(String command) throws Exception {
+        Query session = lookahead.poll();
+        if (session == null) {
+            session = new Query(configFilename, pool);
+            session.openConnection();
+            session.prepareStatements();
+        }
+        try {
+            return run(session, command);
+        } finally {
+            lookahead.add(session);
+        }
+    }
+
+    /**
+     * Executes one command. A command that throws only gets an error response of its own: the
+     * commands before it may already have committed.
+     */
+    private static String run(Query q, String command) {
+        try {
+            return FlightService.execute(q, command);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return "Error: " + e;
+        }
+    }
+
+    private static String await(Future<String> response) {
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+        return "Failed to search\n";
+    }
+
+    /** The command with its tokens normalized, so that the same read is recognized. */
+    private static String key(String command) {
+        return String.join("\n", FlightService.tokenize(command.trim()));
+    }
+
+    private static boolean isSearch(String command) {
+        String[] tokens = FlightService.tokenize(command.trim());
+        return tokens.length > 0 && tokens[0].equals("search") && (tokens.length == 6 || tokens.length == 7);
+    }
+
+    /** @return true for a well-formed search or reservation listing */
+    static boolean isRead(String command) {
+        String[] tokens = FlightService.tokenize(command.trim());
+        if (tokens.length == 0) {
+            return false;
+        }
+        if (tokens[0].equals("reservations")) {
+            return tokens.length == 1 || tokens.length == 3;
+        }
+        return isSearch(command);
+    }
+
+    /** Closes the connections of the lookahead sessions; the executor threads are daemons. */
+    public void close() {
+        if (pool != null) {
+            executor.shutdown();
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size pool of database connections shared by many logical {@code Query} sessions.
+ *
+ * Each pooled entry is a back-end {@code Query} that owns one physical connection and
+ * the statements prepared on it. A session borrows a back end only for the duration of
+ * one transaction, so a bounded number of connections can serve any number of users.
+ * Back ends are opened lazily, up to {@code size}. An idle back end is checked before it is
+ * handed out again; one whose connection broke is closed and replaced.
+ */
+public class ConnectionPool {
+    // seconds an idle connection has to answer the check in borrow()
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    private final String configFilename;
+    private final int size;
+    private final long timeoutMillis;
+
+    private final LinkedBlockingQueue<Query> idle = new LinkedBlockingQueue<>();
+    private final List<Query> all = new ArrayList<>();
+    private boolean closed;
+
+    // metrics
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final LatencyHistogram borrowLatency = new LatencyHistogram();
+
+    /**
+     * @param configFilename database settings, see {@code dbconn.properties}
+     * @param size maximum number of physical connections
+     * @param timeoutMillis how long {@link #borrow()} waits for a free connection before failing
+     */
+    public ConnectionPool(String configFilename, int size, long timeoutMillis) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("pool size must be positive: " + size);
+        }
+        this.configFilename = configFilename;
+        this.size = size;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Takes a back end out of the pool, opening a new connection if the pool is not full yet
+     * and waiting for one to be released otherwise.
+     *
+     * @throws SQLException if no connection became available within the timeout, or a new one
+     * could not be opened
+     */
+    public Query borrow() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Query q;
+        while (true) {
+            q = idle.poll();
+            if (q == null) {
+                q = create();
+                if (q != null) {
+                    break; // just opened
+                }
+                try {
+                    q = idle.poll(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a database connection");
+                }
+                if (q == null) {
+                    timeouts.incrementAndGet();
+                    throw new SQLException("Timed out after " + timeoutMillis + " ms waiting for a database connection");
+                }
+            }
+            if (q.isConnectionValid(VALIDATION_TIMEOUT_SECONDS)) {
+                break;
+            }
+            // broken while idle: its slot is freed, so the next round can open a new connection
+            discard(q);
+        }
+        long waited = System.nanoTime() - start;
+        waitNanos.addAndGet(waited);
+        borrowLatency.record(waited);
+        borrows.incrementAndGet();
+        active.incrementAndGet();
+        return q;
+    }
+
+    /**
+     * Returns a back end obtained from {@link #borrow()}.
+     */
+    public void release(Query q) {
+        active.decrementAndGet();
+        synchronized (this) {
+            if (closed) {
+                closeQuietly(q);
+                return;
+            }
+        }
+        idle.offer(q);
+    }
+
+    /**
+     * Closes all idle connections; connections still borrowed are closed when released.
+     */
+    public void close() {
+        List<Query> toClose = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            all.clear();
+        }
+        idle.drainTo(toClose);
+        for (Query q : toClose) {
+            closeQuietly(q);
+        }
+    }
+
+    private Query create() throws SQLException {
+        synchronized (this) {
+            if (closed) {
+                throw new SQLException("Connection pool is closed");
+            }
+            if (all.size() >= size) {
+                return null;
+            }
+            // reserve the slot before connecting so the lock is not held during network I/O
+            all.add(null);
+        }
+        Query q = new Query(configFilename);
+        try {
+            q.openConnection();
+            q.prepareStatements();
+        } catch (Exception e) {
+            synchronized (this) {
+                all.remove(null);
+            }
+            throw new SQLException("Could not open a pooled connection: " + e.getMessage(), e);
+        }
+        synchronized (this) {
+            if (!closed) {
+                all.set(all.indexOf(null), q);
+                return q;
+            }
+        }
+        closeQuietly(q);
+        throw new SQLException("Connection pool is closed");
+    }
+
+    private void discard(Query q) {
+        discarded.incrementAndGet();
+        closeQuietly(q);
+        synchronized (this) {
+            all.remove(q);
+        }
+    }
+
+    private static void closeQuietly(Query q) {
+        try {
+            q.closeConnection();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** @return maximum number of connections */
+    public int size() {
+        return size;
+    }
+
+    /** @return number of connections currently opened */
+    public synchronized int opened() {
+        int n = 0;
+        for (Query q : all) {
+            if (q != null) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /** @return number of connections currently borrowed by a session */
+    public int active() {
+        return active.get();
+    }
+
+    public long borrows() {
+        return borrows.get();
+    }
+
+    public long timeouts() {
+        return timeouts.get();
+    }
+
+    /** @return connections found broken in {@link #borrow()} and replaced */
+    public long discarded() {
+        return discarded.get();
+    }
+
+    /** @return total time sessions spent waiting in {@link #borrow()}, in nanoseconds */
+    public long waitNanos() {
+        return waitNanos.get();
+    }
+
+    public LatencyHistogram borrowLatency() {
+        return borrowLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "pool: size=" + size + " opened=" + opened() + " active=" + active() + " borrows=" + borrows()
+            + " timeouts=" + timeouts() + " discarded=" + discarded() + " wait=" + String.format("%.3f", waitNanos() / 1e6) + " ms\n"
+            + "pool borrow latency: " + borrowLatency + "\n";
+    }
+}
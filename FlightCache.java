@@ -0,0 +1,278 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * JVM-wide, size-bounded cache of Flights rows keyed by fid, shared by every {@code Query}.
+ *
+ * Rows are kept in primitive column arrays (city and carrier names are interned), and
+ * fids are mapped to slots with an open-addressing hash table, so a cached flight costs a
+ * few dozen bytes and no objects. When the cache is full a slot is reclaimed with the
+ * configured policy:
+ * <ul>
+ * <li>{@code clock}: second chance, flights read since the hand last passed are kept (approximate LRU)</li>
+ * <li>{@code fifo}: the oldest cached flight is dropped</li>
+ * </ul>
+ *
+ * Flights rows are treated as immutable once loaded; booked seats live in Booking.
+ */
+public class FlightCache {
+    private static final String WARMUP_SQL = "SELECT TOP (?) F.fid, F.day_of_month, F.carrier_id, F.flight_num, "
+        + "F.origin_city, F.dest_city, F.actual_time, F.capacity, F.price "
+        + "FROM Flights AS F INNER JOIN Booking AS B ON B.fid = F.fid ORDER BY B.count DESC";
+
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private static FlightCache shared;
+
+    private final int capacity;
+    private final boolean clock;
+
+    // interned city and carrier names
+    private final HashMap<String, Integer> nameIds = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    // slot columns
+    private final int[] fid;
+    private final int[] day;
+    private final int[] carrier;
+    private final int[] flightNum;
+    private final int[] origin;
+    private final int[] dest;
+    private final int[] time;
+    private final int[] seats;
+    private final int[] price;
+    private final boolean[] referenced;
+    private int used;
+    private int hand;
+
+    // fid -> slot, linear probing
+    private final int[] keys;
+    private final int[] slots;
+    private final int mask;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Returns the JVM-wide cache configured by {@code flightservice.flight_cache_size},
+     * {@code flightservice.flight_cache_policy} and {@code flightservice.flight_cache_warmup},
+     * creating and warming it up from {@code conn} on first use.
+     *
+     * @return null if the cache is disabled (size 0)
+     */
+    public static synchronized FlightCache shared(Properties config, Connection conn) throws SQLException {
+        if (shared == null) {
+            int size = Integer.parseInt(config.getProperty("flightservice.flight_cache_size", "0").trim());
+            if (size <= 0) {
+                return null;
+            }
+            String policy = config.getProperty("flightservice.flight_cache_policy", "clock").trim();
+            FlightCache cache = new FlightCache(size, policy);
+            int warmup = Integer.parseInt(config.getProperty("flightservice.flight_cache_warmup", "1000").trim());
+            cache.warmUp(conn, Math.min(warmup, size));
+            shared = cache;
+        }
+        return shared;
+    }
+
+    /**
+     * @param capacity maximum number of cached flights
+     * @param policy {@code clock} or {@code fifo}
+     */
+    public FlightCache(int capacity, String policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("flight cache size must be positive: " + capacity);
+        }
+        if (!policy.equals("clock") && !policy.equals("fifo")) {
+            throw new IllegalArgumentException("unknown flight cache policy: " + policy);
+        }
+        this.capacity = capacity;
+        this.clock = policy.equals("clock");
+        fid = new int[capacity];
+        day = new int[capacity];
+        carrier = new int[capacity];
+        flightNum = new int[capacity];
+        origin = new int[capacity];
+        dest = new int[capacity];
+        time = new int[capacity];
+        seats = new int[capacity];
+        price = new int[capacity];
+        referenced = new boolean[capacity];
+
+        int tableSize = Integer.highestOneBit(Math.max(capacity * 2 - 1, 1)) << 1;
+        keys = new int[tableSize];
+        slots = new int[tableSize];
+        mask = tableSize - 1;
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Loads the {@code count} most booked flights.
+     */
+    public void warmUp(Connection conn, int count) throws SQLException {
+        if (count <= 0) {
+            return;
+        }
+        PreparedStatement ps = conn.prepareStatement(WARMUP_SQL);
+        try {
+            ps.setInt(1, count);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                put(rs.getInt("fid"), rs.getInt("day_of_month"), rs.getString("carrier_id"), rs.getInt("flight_num"),
+                    rs.getString("origin_city"), rs.getString("dest_city"), rs.getInt("actual_time"),
+                    rs.getInt("capacity"), rs.getInt("price"));
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+    }
+
+    /**
+     * Copies the cached flight into {@code out}.
+     *
+     * @return false if the flight is not cached
+     */
+    public synchronized boolean get(int flightId, Query.Flight out) {
+        int slot = find(flightId);
+        if (slot < 0) {
+            misses++;
+            return false;
+        }
+        hits++;
+        referenced[slot] = true;
+        out.fid = fid[slot];
+        out.dayOfMonth = day[slot];
+        out.carrierId = names.get(carrier[slot]);
+        out.flightNum = String.valueOf(flightNum[slot]);
+        out.originCity = names.get(origin[slot]);
+        out.destCity = names.get(dest[slot]);
+        out.time = time[slot];
+        out.capacity = seats[slot];
+        out.price = price[slot];
+        return true;
+    }
+
+    public void put(Query.Flight f) {
+        put(f.fid, f.dayOfMonth, f.carrierId, f.flightNum == null ? 0 : Integer.parseInt(f.flightNum), f.originCity, f.destCity,
+            f.time, f.capacity, f.price);
+    }
+
+    public synchronized void put(int flightId, int dayOfMonth, String carrierId, int number, String originCity,
+                                 String destCity, int actualTime, int cap, int p) {
+        int slot = find(flightId);
+        if (slot < 0) {
+            slot = used < capacity ? used++ : evict();
+            insertKey(flightId, slot);
+        }
+        fid[slot] = flightId;
+        day[slot] = dayOfMonth;
+        carrier[slot] = intern(carrierId);
+        flightNum[slot] = number;
+        origin[slot] = intern(originCity);
+        dest[slot] = intern(destCity);
+        time[slot] = actualTime;
+        seats[slot] = cap;
+        price[slot] = p;
+        referenced[slot] = false;
+    }
+
+    /** Frees a slot according to the policy and returns it. */
+    private int evict() {
+        while (clock && referenced[hand]) {
+            referenced[hand] = false;
+            hand = (hand + 1) % capacity;
+        }
+        int slot = hand;
+        hand = (hand + 1) % capacity;
+        removeKey(fid[slot]);
+        evictions++;
+        return slot;
+    }
+
+    private int intern(String name) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = names.size();
+            nameIds.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int find(int key) {
+        for (int i = hash(key) & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return slots[i];
+            }
+        }
+        return -1;
+    }
+
+    private void insertKey(int key, int slot) {
+        int i = hash(key) & mask;
+        while (keys[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        slots[i] = slot;
+    }
+
+    /** Removes a key and shifts back the entries of its probe run, so no tombstones are needed. */
+    private void removeKey(int key) {
+        int i = hash(key) & mask;
+        while (keys[i] != key) {
+            if (keys[i] == EMPTY) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        int gap = i;
+        for (int j = (gap + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            // move entry j into the gap unless its home lies cyclically in (gap, j]
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                slots[gap] = slots[j];
+                gap = j;
+            }
+        }
+        keys[gap] = EMPTY;
+    }
+
+    public synchronized int size() {
+        return used;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("flight cache: size=%d/%d policy=%s hits=%d misses=%d evictions=%d hit rate=%.1f%%%n",
+            used, capacity, clock ? "clock" : "fifo", hits, misses, evictions,
+            hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses));
+    }
+}
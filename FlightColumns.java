@@ -0,0 +1,61 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Positions of the columns of one flight in a result set, looked up once so that rows can be
+ * read by index instead of by name. A result set holding two flights, such as a one-stop
+ * itinerary or a reservation, has one instance per flight, told apart by the suffix of
+ * their column names (fid1, day_of_month1, ...).
+ */
+class FlightColumns {
+    final int fid;
+    final int dayOfMonth;
+    final int carrierId;
+    final int flightNum;
+    final int originCity;
+    final int destCity;
+    final int time;
+    final int capacity;
+    final int price;
+
+    /**
+     * @param suffix appended to every column name, "" for a single flight
+     */
+    FlightColumns(ResultSet rs, String suffix) throws SQLException {
+        this(rs, suffix, "actual_time" + suffix);
+    }
+
+    /**
+     * @param timeColumn name of the duration column, when it is not actual_time
+     */
+    FlightColumns(ResultSet rs, String suffix, String timeColumn) throws SQLException {
+        fid = rs.findColumn("fid" + suffix);
+        dayOfMonth = rs.findColumn("day_of_month" + suffix);
+        carrierId = rs.findColumn("carrier_id" + suffix);
+        flightNum = rs.findColumn("flight_num" + suffix);
+        originCity = rs.findColumn("origin_city" + suffix);
+        destCity = rs.findColumn("dest_city" + suffix);
+        time = rs.findColumn(timeColumn);
+        capacity = rs.findColumn("capacity" + suffix);
+        price = rs.findColumn("price" + suffix);
+    }
+
+    /** Appends the flight of the current row, formatted like {@code Query.Flight#toString()}. */
+    void write(ResultSet rs, ResponseWriter out) throws SQLException {
+        out.flight(rs.getInt(fid), rs.getInt(dayOfMonth), rs.getString(carrierId), rs.getString(flightNum),
+            rs.getString(originCity), rs.getString(destCity), rs.getInt(time), rs.getInt(capacity), rs.getInt(price));
+    }
+
+    /** Copies the flight of the current row into {@code f}. */
+    void read(ResultSet rs, Query.Flight f) throws SQLException {
+        f.fid = rs.getInt(fid);
+        f.dayOfMonth = rs.getInt(dayOfMonth);
+        f.carrierId = rs.getString(carrierId);
+        f.flightNum = rs.getString(flightNum);
+        f.originCity = rs.getString(originCity);
+        f.destCity = rs.getString(destCity);
+        f.time = rs.getInt(time);
+        f.capacity = rs.getInt(capacity);
+        f.price = rs.getInt(price);
+    }
+}
@@ -0,0 +1,599 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * In-memory route index over the Flights table, used to answer direct, one-stop and
+ * multi-stop searches without a database round trip.
+ *
+ * Flights are held in primitive column arrays sorted by (day_of_month, origin_city,
+ * dest_city, actual_time, fid). All flights leaving a city on a given day form one
+ * contiguous adjacency list, located through {@code bucketStart}; within a list the
+ * flights to any one destination are again contiguous and ordered by time.
+ *
+ * The schedule is assumed not to change while the service is running, so one index is
+ * built per JVM and shared by every {@code Query}.
+ */
+public class FlightIndex {
+    private static final String LOAD_SQL = "SELECT fid, day_of_month, carrier_id, flight_num, "
+        + "origin_city, dest_city, actual_time, capacity, price FROM Flights "
+        + "WHERE actual_time IS NOT NULL";
+
+    private static final int MAX_DAY = 31;
+
+    private static FlightIndex shared;
+
+    // copy used by multi-stop searches when regular searches go to the database
+    private static FlightIndex snapshot;
+    private static long snapshotExpires;
+
+    // interned city and carrier names
+    private final String[] cities;
+    private final HashMap<String, Integer> cityIds;
+    private final String[] carriers;
+
+    // one entry per flight, sorted as described above
+    private final int size;
+    private final int[] fid;
+    private final int[] day;
+    private final int[] origin;
+    private final int[] dest;
+    private final int[] time;
+    private final int[] capacity;
+    private final int[] price;
+    private final int[] carrier;
+    private final int[] flightNum;
+
+    // flights leaving city c on day d are rows [bucketStart[d * cities + c], bucketStart[d * cities + c + 1])
+    private final int[] bucketStart;
+
+    /**
+     * Returns the JVM-wide index, loading it from {@code conn} on first use.
+     */
+    public static synchronized FlightIndex shared(Connection conn) throws SQLException {
+        if (shared == null) {
+            shared = load(conn);
+        }
+        return shared;
+    }
+
+    /**
+     * Returns the JVM-wide copy of the schedule for searches the database cannot answer,
+     * reloading it from {@code conn} on first use and once it is older than {@code maxAgeMillis}.
+     * Each load reads the whole Flights table, and the session asking for it waits until
+     * it is done; so do other sessions asking in the meantime.
+     */
+    public static synchronized FlightIndex snapshot(Connection conn, long maxAgeMillis) throws SQLException {
+        if (snapshot == null || System.nanoTime() - snapshotExpires > 0) {
+            snapshot = null; // let the previous copy go before the next one is built
+            snapshot = load(conn);
+            snapshotExpires = System.nanoTime() + maxAgeMillis * 1000000L;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Reads every flight with a known duration from the database and builds a new index.
+     */
+    public static FlightIndex load(Connection conn) throws SQLException {
+        Builder b = new Builder();
+        PreparedStatement ps = conn.prepareStatement(LOAD_SQL);
+        try {
+            ps.setFetchSize(10000);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                b.add(rs.getInt("fid"), rs.getInt("day_of_month"), rs.getString("carrier_id"),
+                    rs.getInt("flight_num"), rs.getString("origin_city"), rs.getString("dest_city"),
+                    rs.getInt("actual_time"), rs.getInt("capacity"), rs.getInt("price"));
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+        return b.build();
+    }
+
+    private FlightIndex(Builder b) {
+        cities = b.cityNames.toArray(new String[0]);
+        cityIds = b.cityIds;
+        carriers = b.carrierNames.toArray(new String[0]);
+        size = b.size;
+
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        sort(b, order, new int[size], 0, size);
+
+        fid = permute(b.fid, order);
+        day = permute(b.day, order);
+        origin = permute(b.origin, order);
+        dest = permute(b.dest, order);
+        time = permute(b.time, order);
+        capacity = permute(b.capacity, order);
+        price = permute(b.price, order);
+        carrier = permute(b.carrier, order);
+        flightNum = permute(b.flightNum, order);
+
+        // rows are sorted by (day, origin), so the bucket offsets are a running count
+        int buckets = (MAX_DAY + 1) * cities.length;
+        bucketStart = new int[buckets + 1];
+        for (int i = 0; i < size; i++) {
+            bucketStart[bucket(day[i], origin[i]) + 1]++;
+        }
+        for (int i = 0; i < buckets; i++) {
+            bucketStart[i + 1] += bucketStart[i];
+        }
+    }
+
+    /** @return number of flights in the index */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Direct flights from {@code originCity} to {@code destinationCity} on the given day,
+     * shortest first, at most {@code limit} of them.
+     */
+    public ItineraryCursor direct(String originCity, String destinationCity, int dayOfMonth, int limit) {
+        Integer o = cityIds.get(originCity);
+        Integer d = cityIds.get(destinationCity);
+        if (o == null || d == null || dayOfMonth < 0 || dayOfMonth > MAX_DAY) {
+            return new DirectCursor(0, 0);
+        }
+        int b = bucket(dayOfMonth, o);
+        int start = lowerBound(bucketStart[b], bucketStart[b + 1], d);
+        int end = lowerBound(start, bucketStart[b + 1], d + 1);
+        return new DirectCursor(start, Math.min(end, start + Math.max(limit, 0)));
+    }
+
+    /**
+     * One-stop itineraries from {@code originCity} to {@code destinationCity} where both legs
+     * fly on the given day, ordered by total time, at most {@code limit} of them.
+     *
+     * For every intermediate city the first and second legs are already sorted by time, so
+     * the k best pairs are produced lazily with a heap over the (first, second) grid instead
+     * of materializing the join.
+     */
+    public ItineraryCursor twoHop(String originCity, String destinationCity, int dayOfMonth, int limit) {
+        TwoHopCursor cursor = new TwoHopCursor(limit);
+        Integer o = cityIds.get(originCity);
+        Integer d = cityIds.get(destinationCity);
+        if (o == null || d == null || dayOfMonth < 0 || dayOfMonth > MAX_DAY || limit <= 0) {
+            return cursor;
+        }
+        int b = bucket(dayOfMonth, o);
+        int i = bucketStart[b];
+        int end = bucketStart[b + 1];
+        while (i < end) {
+            int via = dest[i];
+            int firstEnd = lowerBound(i, end, via + 1);
+            if (via != d) {
+                int vb = bucket(dayOfMonth, via);
+                int secondStart = lowerBound(bucketStart[vb], bucketStart[vb + 1], d);
+                int secondEnd = lowerBound(secondStart, bucketStart[vb + 1], d + 1);
+                if (secondStart < secondEnd) {
+                    cursor.heap.add(new Pair(i, firstEnd, secondStart, secondStart, secondEnd));
+                }
+            }
+            i = firstEnd;
+        }
+        return cursor;
+    }
+
+    /**
+     * Itineraries of up to {@code maxLegs} flights from {@code originCity} to
+     * {@code destinationCity}, all on the given day and never visiting a city twice, ordered
+     * by total time, then by number of flights, at most {@code limit} of them.
+     *
+     * The search is best-first: partial itineraries are expanded in order of their total time,
+     * so complete ones come out ranked, and one that cannot beat the {@code limit}-th best
+     * complete itinerary seen so far is dropped. Flights to the same city are tried in time
+     * order, the next one only once the previous one was expanded. A last leg can only go to
+     * the destination. If {@code deadline} (a {@code System.nanoTime()} value) passes, the
+     * itineraries found so far are returned.
+     */
+    public ItineraryCursor multiHop(String originCity, String destinationCity, int dayOfMonth, int maxLegs,
+                                    int limit, long deadline) {
+        MultiHopCursor cursor = new MultiHopCursor();
+        Integer o = cityIds.get(originCity);
+        Integer d = cityIds.get(destinationCity);
+        if (o == null || d == null || o.equals(d) || dayOfMonth < 0 || dayOfMonth > MAX_DAY
+            || maxLegs <= 0 || limit <= 0) {
+            return cursor;
+        }
+        PriorityQueue<Path> open = new PriorityQueue<>(64, new Comparator<Path>() {
+            @Override
+            public int compare(Path x, Path y) {
+                int c = Integer.compare(x.total, y.total);
+                return c != 0 ? c : Integer.compare(x.legs, y.legs);
+            }
+        });
+        // totals of the best complete itineraries pushed so far, largest on top
+        PriorityQueue<Integer> best = new PriorityQueue<>(limit, Collections.reverseOrder());
+        expand(open, best, limit, null, o, d, dayOfMonth, maxLegs);
+
+        for (int polled = 0; !open.isEmpty() && cursor.results.size() < limit; polled++) {
+            if ((polled & 255) == 255 && System.nanoTime() - deadline > 0) {
+                break;
+            }
+            Path p = open.poll();
+            // the next flight to the same city, with the same earlier legs
+            if (p.row + 1 < p.groupEnd) {
+                push(open, best, limit, new Path(p.prev, p.row + 1, p.groupEnd), d);
+            }
+            if (dest[p.row] == d) {
+                cursor.results.add(p);
+            } else if (p.legs < maxLegs) {
+                expand(open, best, limit, p, dest[p.row], d, dayOfMonth, maxLegs);
+            }
+        }
+        return cursor;
+    }
+
+    /** Pushes the shortest flight to every city not yet visited that {@code p} can continue to from {@code city}. */
+    private void expand(PriorityQueue<Path> open, PriorityQueue<Integer> best, int limit, Path p, int city,
+                        int destination, int dayOfMonth, int maxLegs) {
+        int b = bucket(dayOfMonth, city);
+        int legs = p == null ? 1 : p.legs + 1;
+        if (legs == maxLegs) {
+            int start = lowerBound(bucketStart[b], bucketStart[b + 1], destination);
+            int end = lowerBound(start, bucketStart[b + 1], destination + 1);
+            if (start < end) {
+                push(open, best, limit, new Path(p, start, end), destination);
+            }
+            return;
+        }
+        int i = bucketStart[b];
+        int end = bucketStart[b + 1];
+        while (i < end) {
+            int to = dest[i];
+            int groupEnd = lowerBound(i, end, to + 1);
+            if (!visits(p, to)) {
+                push(open, best, limit, new Path(p, i, groupEnd), destination);
+            }
+            i = groupEnd;
+        }
+    }
+
+    private void push(PriorityQueue<Path> open, PriorityQueue<Integer> best, int limit, Path p, int destination) {
+        if (best.size() == limit && p.total > best.peek()) {
+            return;
+        }
+        if (dest[p.row] == destination) {
+            best.add(p.total);
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+        open.add(p);
+    }
+
+    /** @return whether {@code city} is the origin or a stop of {@code p} */
+    private boolean visits(Path p, int city) {
+        for (; p != null; p = p.prev) {
+            if (origin[p.row] == city || dest[p.row] == city) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes one flight in the format of {@code Query.Flight#toString()}, followed by a newline.
+     */
+    void writeFlight(int row, ResponseWriter out) {
+        out.append("ID: ").append(fid[row])
+            .append(" Day: ").append(day[row])
+            .append(" Carrier: ").append(carriers[carrier[row]])
+            .append(" Number: ").append(flightNum[row])
+            .append(" Origin: ").append(cities[origin[row]])
+            .append(" Dest: ").append(cities[dest[row]])
+            .append(" Duration: ").append(time[row])
+            .append(" Capacity: ").append(capacity[row])
+            .append(" Price: ").append(price[row])
+            .append('\n');
+    }
+
+    private int bucket(int dayOfMonth, int city) {
+        return dayOfMonth * cities.length + city;
+    }
+
+    /** First row in [from, to) whose destination is not less than {@code city}. */
+    private int lowerBound(int from, int to, int city) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (dest[mid] < city) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    private static int[] permute(int[] column, int[] order) {
+        int[] sorted = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sorted[i] = column[order[i]];
+        }
+        return sorted;
+    }
+
+    /** Merge sort of row numbers, so that no boxing is needed for large tables. */
+    private static void sort(Builder b, int[] rows, int[] tmp, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sort(b, rows, tmp, from, mid);
+        sort(b, rows, tmp, mid, to);
+        if (compare(b, rows[mid - 1], rows[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(rows, from, tmp, from, to - from);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to) {
+            rows[k++] = compare(b, tmp[j], tmp[i]) < 0 ? tmp[j++] : tmp[i++];
+        }
+        while (i < mid) {
+            rows[k++] = tmp[i++];
+        }
+        while (j < to) {
+            rows[k++] = tmp[j++];
+        }
+    }
+
+    private static int compare(Builder b, int x, int y) {
+        if (b.day[x] != b.day[y]) return Integer.compare(b.day[x], b.day[y]);
+        if (b.origin[x] != b.origin[y]) return Integer.compare(b.origin[x], b.origin[y]);
+        if (b.dest[x] != b.dest[y]) return Integer.compare(b.dest[x], b.dest[y]);
+        if (b.time[x] != b.time[y]) return Integer.compare(b.time[x], b.time[y]);
+        return Integer.compare(b.fid[x], b.fid[y]);
+    }
+
+    class DirectCursor implements ItineraryCursor {
+        private int row;
+        private final int end;
+
+        DirectCursor(int start, int end) {
+            this.row = start - 1;
+            this.end = end;
+        }
+
+        public boolean next() {
+            return ++row < end;
+        }
+
+        public int flightCount() {
+            return 1;
+        }
+
+        public int totalTime() {
+            return time[row];
+        }
+
+        public int dayOfMonth() {
+            return day[row];
+        }
+
+        public int fid(int leg) {
+            return fid[row];
+        }
+
+        public void writeFlight(int leg, ResponseWriter out) {
+            FlightIndex.this.writeFlight(row, out);
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * A cell of the (first leg, second leg) grid for one intermediate city. Rows
+     * [first, firstEnd) are the first legs, [secondStart, secondEnd) the second legs.
+     */
+    static class Pair {
+        final int first, firstEnd, second, secondStart, secondEnd;
+
+        Pair(int first, int firstEnd, int second, int secondStart, int secondEnd) {
+            this.first = first;
+            this.firstEnd = firstEnd;
+            this.second = second;
+            this.secondStart = secondStart;
+            this.secondEnd = secondEnd;
+        }
+    }
+
+    class TwoHopCursor implements ItineraryCursor {
+        private final PriorityQueue<Pair> heap = new PriorityQueue<>(16, new Comparator<Pair>() {
+            @Override
+            public int compare(Pair x, Pair y) {
+                int c = Integer.compare(time[x.first] + time[x.second], time[y.first] + time[y.second]);
+                if (c != 0) return c;
+                c = Integer.compare(fid[x.first], fid[y.first]);
+                return c != 0 ? c : Integer.compare(fid[x.second], fid[y.second]);
+            }
+        });
+        private int remaining;
+        private Pair current;
+
+        TwoHopCursor(int limit) {
+            this.remaining = limit;
+        }
+
+        public boolean next() {
+            if (remaining <= 0 || heap.isEmpty()) {
+                return false;
+            }
+            remaining--;
+            current = heap.poll();
+            Pair p = current;
+            // each cell is reached from exactly one predecessor: down the first column, then right
+            if (p.second == p.secondStart && p.first + 1 < p.firstEnd) {
+                heap.add(new Pair(p.first + 1, p.firstEnd, p.second, p.secondStart, p.secondEnd));
+            }
+            if (p.second + 1 < p.secondEnd) {
+                heap.add(new Pair(p.first, p.firstEnd, p.second + 1, p.secondStart, p.secondEnd));
+            }
+            return true;
+        }
+
+        public int flightCount() {
+            return 2;
+        }
+
+        public int totalTime() {
+            return time[current.first] + time[current.second];
+        }
+
+        public int dayOfMonth() {
+            return day[current.first];
+        }
+
+        public int fid(int leg) {
+            return fid[leg == 0 ? current.first : current.second];
+        }
+
+        public void writeFlight(int leg, ResponseWriter out) {
+            FlightIndex.this.writeFlight(leg == 0 ? current.first : current.second, out);
+        }
+
+        public void close() {
+            heap.clear();
+        }
+    }
+
+    /**
+     * A partial itinerary: flight {@code row} after the legs of {@code prev}. Rows up to
+     * {@code groupEnd} go to the same city and are the alternatives for this leg.
+     */
+    class Path {
+        final Path prev;
+        final int row, groupEnd, legs, total;
+
+        Path(Path prev, int row, int groupEnd) {
+            this.prev = prev;
+            this.row = row;
+            this.groupEnd = groupEnd;
+            this.legs = prev == null ? 1 : prev.legs + 1;
+            this.total = (prev == null ? 0 : prev.total) + time[row];
+        }
+
+        int row(int leg) {
+            Path p = this;
+            for (int i = legs - 1; i > leg; i--) {
+                p = p.prev;
+            }
+            return p.row;
+        }
+    }
+
+    class MultiHopCursor implements ItineraryCursor {
+        private final List<Path> results = new ArrayList<>();
+        private int index = -1;
+        private Path current;
+
+        public boolean next() {
+            if (index + 1 >= results.size()) {
+                return false;
+            }
+            current = results.get(++index);
+            return true;
+        }
+
+        public int flightCount() {
+            return current.legs;
+        }
+
+        public int totalTime() {
+            return current.total;
+        }
+
+        public int dayOfMonth() {
+            return day[current.row];
+        }
+
+        public int fid(int leg) {
+            return fid[current.row(leg)];
+        }
+
+        public void writeFlight(int leg, ResponseWriter out) {
+            FlightIndex.this.writeFlight(current.row(leg), out);
+        }
+
+        public void close() {
+            results.clear();
+        }
+    }
+
+    /** Accumulates rows while the Flights table is being read, or a hand-built schedule. */
+    static class Builder {
+        final HashMap<String, Integer> cityIds = new HashMap<>();
+        final List<String> cityNames = new ArrayList<>();
+        final HashMap<String, Integer> carrierIds = new HashMap<>();
+        final List<String> carrierNames = new ArrayList<>();
+
+        int size;
+        int[] fid = new int[1024];
+        int[] day = new int[1024];
+        int[] origin = new int[1024];
+        int[] dest = new int[1024];
+        int[] time = new int[1024];
+        int[] capacity = new int[1024];
+        int[] price = new int[1024];
+        int[] carrier = new int[1024];
+        int[] flightNum = new int[1024];
+
+        void add(int f, int d, String carrierId, int number, String originCity, String destCity,
+                 int actualTime, int cap, int p) {
+            if (d < 0 || d > MAX_DAY) {
+                return;
+            }
+            if (size == fid.length) {
+                int n = size * 2;
+                fid = Arrays.copyOf(fid, n);
+                day = Arrays.copyOf(day, n);
+                origin = Arrays.copyOf(origin, n);
+                dest = Arrays.copyOf(dest, n);
+                time = Arrays.copyOf(time, n);
+                capacity = Arrays.copyOf(capacity, n);
+                price = Arrays.copyOf(price, n);
+                carrier = Arrays.copyOf(carrier, n);
+                flightNum = Arrays.copyOf(flightNum, n);
+            }
+            fid[size] = f;
+            day[size] = d;
+            carrier[size] = intern(carrierIds, carrierNames, carrierId);
+            flightNum[size] = number;
+            origin[size] = intern(cityIds, cityNames, originCity);
+            dest[size] = intern(cityIds, cityNames, destCity);
+            time[size] = actualTime;
+            capacity[size] = cap;
+            price[size] = p;
+            size++;
+        }
+
+        FlightIndex build() {
+            return new FlightIndex(this);
+        }
+
+        private static int intern(HashMap<String, Integer> ids, List<String> names, String name) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = names.size();
+                ids.put(name, id);
+                names.add(name);
+            }
+            return id;
+        }
+    }
+}
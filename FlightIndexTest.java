@@ -0,0 +1,197 @@
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the in-memory route index on a small hand-built schedule, against the ordering of
+ * the search SQL: total time, then fid (fid1, then fid2 for one-stop itineraries).
+ */
+public class FlightIndexTest {
+    private static final int DAY = 3;
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /** fid, day, from, to, time; carrier, number, capacity and price are derived from the fid. */
+    private static FlightIndex index(int[][] flights, String... cities) {
+        FlightIndex.Builder b = new FlightIndex.Builder();
+        for (int[] f : flights) {
+            b.add(f[0], f[1], "C" + f[0], f[0] * 10, cities[f[2]], cities[f[3]], f[4], f[0] + 100, f[0] + 200);
+        }
+        return b.build();
+    }
+
+    /** @return the fids of every itinerary of the cursor, one list per itinerary */
+    private static List<List<Integer>> fids(ItineraryCursor cursor) throws SQLException {
+        List<List<Integer>> itineraries = new ArrayList<>();
+        while (cursor.next()) {
+            List<Integer> legs = new ArrayList<>();
+            for (int leg = 0; leg < cursor.flightCount(); leg++) {
+                legs.add(cursor.fid(leg));
+            }
+            itineraries.add(legs);
+        }
+        cursor.close();
+        return itineraries;
+    }
+
+    private static List<List<Integer>> itineraries(Integer[]... legs) {
+        List<List<Integer>> itineraries = new ArrayList<>();
+        for (Integer[] l : legs) {
+            itineraries.add(Arrays.asList(l));
+        }
+        return itineraries;
+    }
+
+    // A=0, B=1, C=2, D=3
+    private static final String[] CITIES = {"A", "B", "C", "D"};
+
+    private static final int[][] SCHEDULE = {
+        // direct A -> D, fids 4 and 2 tie on time
+        {5, DAY, 0, 3, 100}, {4, DAY, 0, 3, 90}, {2, DAY, 0, 3, 90},
+        // one-stop A -> B -> D: 40 + 60 and 50 + 50 tie at 100
+        {10, DAY, 0, 1, 40}, {11, DAY, 0, 1, 50}, {12, DAY, 1, 3, 60}, {13, DAY, 1, 3, 50},
+        // one-stop A -> C -> D on the same day, and a second leg on another day
+        {20, DAY, 0, 2, 30}, {21, DAY, 2, 3, 30}, {22, DAY + 1, 2, 3, 1},
+        // B -> A and C -> A, which a multi-stop itinerary must not use to come back
+        {30, DAY, 1, 0, 1}, {31, DAY, 2, 0, 1},
+    };
+
+    @Test
+    public void directOrdersByTimeThenFid() throws SQLException {
+        FlightIndex index = index(SCHEDULE, CITIES);
+        assertEquals(itineraries(new Integer[] {2}, new Integer[] {4}, new Integer[] {5}),
+            fids(index.direct("A", "D", DAY, 10)));
+    }
+
+    @Test
+    public void directTruncatesToLimit() throws SQLException {
+        FlightIndex index = index(SCHEDULE, CITIES);
+        assertEquals(itineraries(new Integer[] {2}, new Integer[] {4}), fids(index.direct("A", "D", DAY, 2)));
+        assertEquals(0, fids(index.direct("A", "D", DAY, 0)).size());
+    }
+
+    @Test
+    public void directOnlyOnTheDay() throws SQLException {
+        FlightIndex index = index(SCHEDULE, CITIES);
+        assertEquals(0, fids(index.direct("A", "D", DAY + 1, 10)).size());
+        assertEquals(0, fids(index.direct("A", "Nowhere", DAY, 10)).size());
+    }
+
+    @Test
+    public void twoHopOrdersByTimeThenFids() throws SQLException {
+        FlightIndex index = index(SCHEDULE, CITIES);
+        // 20+21 = 60, 10+13 = 90, then 10+12, 11+13 tie at 100 and go by fid1, then 11+12 = 110
+        assertEquals(itineraries(new Integer[] {20, 21}, new Integer[] {10, 13}, new Integer[] {10, 12},
+                new Integer[] {11, 13}, new Integer[] {11, 12}),
+            fids(index.twoHop("A", "D", DAY, 10)));
+    }
+
+    @Test
+    public void twoHopTruncatesToLimit() throws SQLException {
+        FlightIndex index = index(SCHEDULE, CITIES);
+        assertEquals(itineraries(new Integer[] {20, 21}, new Integer[] {10, 13}, new Integer[] {10, 12}),
+            fids(index.twoHop("A", "D", DAY, 3)));
+    }
+
+    @Test
+    public void twoHopLegsFlyOnTheSameDay() throws SQLException {
+        FlightIndex index = index(SCHEDULE, CITIES);
+        for (List<Integer> itinerary : fids(index.twoHop("A", "D", DAY, 10))) {
+            assertTrue("flight 22 flies on another day", !itinerary.contains(22));
+        }
+    }
+
+    @Test
+    public void multiHopRanksDirectAndConnectingTogether() throws SQLException {
+        FlightIndex index = index(SCHEDULE, CITIES);
+        assertEquals(itineraries(new Integer[] {20, 21}, new Integer[] {2}, new Integer[] {4},
+                new Integer[] {10, 13}),
+            fids(index.multiHop("A", "D", DAY, 3, 4, NO_DEADLINE)));
+    }
+
+    @Test
+    public void multiHopNeverVisitsACityTwice() throws SQLException {
+        // A -> B -> A -> D would be the shortest, but goes through A twice
+        FlightIndex index = index(new int[][] {
+            {1, DAY, 0, 1, 1}, {2, DAY, 1, 0, 1}, {3, DAY, 0, 3, 50}, {4, DAY, 1, 2, 10}, {5, DAY, 2, 3, 10},
+        }, CITIES);
+        assertEquals(itineraries(new Integer[] {1, 4, 5}, new Integer[] {3}),
+            fids(index.multiHop("A", "D", DAY, 3, 10, NO_DEADLINE)));
+    }
+
+    @Test
+    public void multiHopLimitsLegs() throws SQLException {
+        // A -> B -> C -> D only exists with three legs
+        FlightIndex index = index(new int[][] {
+            {1, DAY, 0, 1, 1}, {2, DAY, 1, 2, 1}, {3, DAY, 2, 3, 1},
+        }, CITIES);
+        assertEquals(0, fids(index.multiHop("A", "D", DAY, 2, 10, NO_DEADLINE)).size());
+        assertEquals(itineraries(new Integer[] {1, 2, 3}), fids(index.multiHop("A", "D", DAY, 3, 10, NO_DEADLINE)));
+    }
+
+    @Test
+    public void multiHopStaysOnTheDay() throws SQLException {
+        FlightIndex index = index(new int[][] {
+            {1, DAY, 0, 1, 1}, {2, DAY + 1, 1, 3, 1}, {3, DAY, 0, 3, 50},
+        }, CITIES);
+        assertEquals(itineraries(new Integer[] {3}), fids(index.multiHop("A", "D", DAY, 3, 10, NO_DEADLINE)));
+    }
+
+    @Test
+    public void multiHopReturnsTheBestFoundByTheDeadline() throws SQLException {
+        // a direct flight, and 20 stops that are all connected to each other and to D, so that
+        // hundreds of partial itineraries are expanded before the next complete one
+        int stops = 20;
+        String[] cities = new String[stops + 2];
+        cities[0] = "A";
+        cities[1] = "D";
+        List<int[]> flights = new ArrayList<>();
+        int fid = 1;
+        flights.add(new int[] {fid++, DAY, 0, 1, 5});
+        for (int i = 2; i < stops + 2; i++) {
+            cities[i] = "S" + i;
+            flights.add(new int[] {fid++, DAY, 0, i, 10});
+            flights.add(new int[] {fid++, DAY, i, 1, 100});
+            for (int j = 2; j < stops + 2; j++) {
+                if (i != j) {
+                    flights.add(new int[] {fid++, DAY, i, j, 10});
+                }
+            }
+        }
+        FlightIndex index = index(flights.toArray(new int[0][]), cities);
+
+        List<List<Integer>> all = fids(index.multiHop("A", "D", DAY, 3, 30, NO_DEADLINE));
+        List<List<Integer>> early = fids(index.multiHop("A", "D", DAY, 3, 30, System.nanoTime() - 1));
+        assertEquals(30, all.size());
+        assertTrue("the deadline stopped the search early", early.size() < all.size());
+        assertTrue("the direct flight was found first", !early.isEmpty());
+        // best-first: what was found in time is the start of the full ranking
+        assertEquals(all.subList(0, early.size()), early);
+    }
+
+    @Test
+    public void writesFlightsLikeQueryFlight() throws SQLException {
+        FlightIndex index = index(SCHEDULE, CITIES);
+        ItineraryCursor cursor = index.direct("A", "D", DAY, 1);
+        assertTrue(cursor.next());
+        ResponseWriter out = new ResponseWriter();
+        cursor.writeFlight(0, out);
+
+        Query.Flight f = new Query("unused").new Flight();
+        f.fid = 2;
+        f.dayOfMonth = DAY;
+        f.carrierId = "C2";
+        f.flightNum = "20";
+        f.originCity = "A";
+        f.destCity = "D";
+        f.time = 90;
+        f.capacity = 102;
+        f.price = 202;
+        assertEquals(f + "\n", out.toString());
+    }
+}
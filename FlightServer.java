@@ -0,0 +1,407 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP front end of the flight service: every client connection is a {@code Query} session of
+ * its own, which keeps its logged in user and search results for as long as it is open.
+ *
+ * Clients send the commands of {@link FlightService#execute}, one per line, in UTF-8. Every
+ * response is sent back in the order of the commands, followed by an empty line; "quit" is
+ * answered with "Goodbye" and closes the connection. Commands received together are run as
+ * one batch through the {@link CommandPipeline}.
+ *
+ * One selector thread does all the network I/O and commands run on worker threads, virtual
+ * ones when the JVM has them, one batch per session at a time. Limits, all in
+ * dbconn.properties:
+ * <ul>
+ * <li>{@code flightservice.server_max_sessions}: connections beyond it are told so and closed,</li>
+ * <li>{@code flightservice.server_idle_timeout_ms}: sessions that neither sent anything nor
+ * read any of their responses for that long are closed, unless a command of theirs is still
+ * running,</li>
+ * <li>{@code flightservice.server_output_limit}: a session stops being read while more bytes
+ * of responses than this wait to be sent, so a client that does not read its responses
+ * ends up blocked by TCP instead of growing the server's memory,</li>
+ * <li>{@code flightservice.server_pool_connections}: if positive, sessions share that many
+ * database connections; otherwise each session opens its own.</li>
+ * </ul>
+ *
+ * Usage: {@code java FlightServer}, listening on {@code flightservice.server_port}.
+ */
+public class FlightServer {
+    private static final byte[] BUSY = "Too many sessions, try again later\n\n".getBytes(StandardCharsets.UTF_8);
+    // longest command line accepted
+    private static final int MAX_LINE = 8192;
+    // commands read ahead of the one running, per session
+    private static final int MAX_PENDING = 256;
+
+    /** One client connection. Only the selector thread touches its fields, except {@link #responses}. */
+    private final class Session {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final Query query;
+        final ByteBuffer input = ByteBuffer.allocate(MAX_LINE);
+        final ArrayDeque<String> pending = new ArrayDeque<>();
+        final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        // set by the worker that ran the last batch, null if it failed to open the session
+        volatile ByteBuffer responses;
+        long outputBytes;
+        // last read, finished batch or write that made progress
+        long lastActive = System.nanoTime();
+        // written by the worker that opens the session, read after it is done
+        volatile boolean opened;
+        boolean busy;
+        boolean quitting;
+        boolean closed;
+
+        Session(SocketChannel channel, SelectionKey key, Query query) {
+            this.channel = channel;
+            this.key = key;
+            this.query = query;
+        }
+    }
+
+    private final String configFilename;
+    private final int port;
+    private final int maxSessions;
+    private final long idleTimeoutNanos;
+    private final long outputLimit;
+    private final ConnectionPool pool;
+    private final CommandPipeline pipeline;
+    private final ExecutorService workers;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Set<Session> sessions = new HashSet<>();
+    // sessions whose batch is done, handed from the workers to the selector thread
+    private final ConcurrentLinkedQueue<Session> done = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    private final AtomicLong commands = new AtomicLong();
+    private long accepted;
+    private long rejected;
+    private long timedOut;
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+
+    public FlightServer(String configFilename) throws IOException {
+        Properties config = new Properties();
+        try (FileInputStream in = new FileInputStream(configFilename)) {
+            config.load(in);
+        }
+        this.configFilename = configFilename;
+        this.maxSessions = Integer.parseInt(config.getProperty("flightservice.server_max_sessions", "1000").trim());
+        this.idleTimeoutNanos = Long.parseLong(config.getProperty("flightservice.server_idle_timeout_ms", "300000").trim())
+            * 1000000L;
+        this.outputLimit = Long.parseLong(config.getProperty("flightservice.server_output_limit", "1048576").trim());
+        int connections = Integer.parseInt(config.getProperty("flightservice.server_pool_connections", "0").trim());
+        this.pool = connections > 0 ? new ConnectionPool(configFilename, connections, 30000) : null;
+        this.pipeline = CommandPipeline.shared(configFilename);
+        this.workers = VirtualThreads.newExecutor("flight-server");
+
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(Integer.parseInt(config.getProperty("flightservice.server_port", "9060").trim())));
+        this.port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /** @return the port the server listens on, chosen by the system if configured as 0 */
+    public int port() {
+        return port;
+    }
+
+    /**
+     * Serves clients until {@link #stop()} is called.
+     */
+    public void run() throws IOException {
+        long checkEvery = Math.max(Math.min(idleTimeoutNanos / 4 / 1000000L, 1000L), 1L);
+        try {
+            while (running) {
+                selector.select(checkEvery);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Session s = (Session) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(s);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(s);
+                        }
+                    } catch (IOException e) {
+                        close(s);
+                    }
+                }
+                Session s;
+                while ((s = done.poll()) != null) {
+                    finished(s);
+                }
+                closeIdle();
+            }
+        } finally {
+            for (Session s : new ArrayList<>(sessions)) {
+                close(s);
+            }
+            server.close();
+            selector.close();
+            workers.shutdown();
+            if (pool != null) {
+                pool.close();
+            }
+        }
+    }
+
+    /** Makes {@link #run()} return after closing every session. */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        if (sessions.size() >= maxSessions) {
+            rejected++;
+            channel.write(ByteBuffer.wrap(BUSY));
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        Session s = new Session(channel, key,
+            pool != null ? new Query(configFilename, pool) : new Query(configFilename));
+        key.attach(s);
+        sessions.add(s);
+        accepted++;
+
+        // opening a connection blocks, so it is done like a command
+        s.busy = true;
+        workers.submit(() -> {
+            try {
+                s.query.openConnection();
+                s.query.prepareStatements();
+                s.opened = true;
+                s.responses = ByteBuffer.allocate(0);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                done.add(s);
+                selector.wakeup();
+            }
+        });
+    }
+
+    private void read(Session s) throws IOException {
+        int n = s.channel.read(s.input);
+        if (n < 0) {
+            close(s);
+            return;
+        }
+        s.lastActive = System.nanoTime();
+        s.input.flip();
+        int start = s.input.position();
+        for (int i = start; i < s.input.limit(); i++) {
+            if (s.input.get(i) == '\n') {
+                String line = new String(s.input.array(), start, i - start, StandardCharsets.UTF_8).trim();
+                if (!line.isEmpty()) {
+                    s.pending.add(line);
+                }
+                start = i + 1;
+            }
+        }
+        s.input.position(start);
+        s.input.compact();
+        if (!s.input.hasRemaining()) {
+            // no newline in a whole buffer
+            close(s);
+            return;
+        }
+        dispatch(s);
+        updateInterest(s);
+    }
+
+    /** Starts the commands read so far, up to the first "quit", unless a batch is running. */
+    private void dispatch(Session s) {
+        if (s.busy || s.pending.isEmpty() || s.quitting) {
+            return;
+        }
+        List<String> batch = new ArrayList<>();
+        while (!s.pending.isEmpty()) {
+            String command = s.pending.poll();
+            batch.add(command);
+            String[] tokens = FlightService.tokenize(command);
+            if (tokens.length > 0 && tokens[0].equals("quit")) {
+                s.quitting = true;
+                s.pending.clear();
+                break;
+            }
+        }
+        s.busy = true;
+        workers.submit(() -> {
+            long start = System.nanoTime();
+            try {
+                s.responses = execute(s.query, batch);
+            } finally {
+                batchLatency.record(System.nanoTime() - start);
+                commands.addAndGet(batch.size());
+                done.add(s);
+                selector.wakeup();
+            }
+        });
+    }
+
+    private ByteBuffer execute(Query q, List<String> batch) {
+        StringBuilder sb = new StringBuilder();
+        // a command that throws gets its own error response from the pipeline
+        for (String response : pipeline.execute(q, batch)) {
+            sb.append(response);
+            if (!response.endsWith("\n")) {
+                sb.append('\n');
+            }
+            sb.append('\n');
+        }
+        return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Takes the responses of the batch that just ended; none means the session could not be opened. */
+    private void finished(Session s) {
+        s.busy = false;
+        ByteBuffer responses = s.responses;
+        s.responses = null;
+        if (s.closed) {
+            closeQuery(s);
+            return;
+        }
+        if (responses == null) {
+            close(s);
+            return;
+        }
+        s.output.add(responses);
+        s.outputBytes += responses.remaining();
+        s.lastActive = System.nanoTime();
+        dispatch(s);
+        updateInterest(s);
+    }
+
+    private void write(Session s) throws IOException {
+        while (!s.output.isEmpty()) {
+            ByteBuffer head = s.output.peek();
+            int n = s.channel.write(head);
+            s.outputBytes -= n;
+            if (n > 0) {
+                // a client draining a long backlog is not read meanwhile, but it is not idle
+                s.lastActive = System.nanoTime();
+            }
+            if (head.hasRemaining()) {
+                break;
+            }
+            s.output.poll();
+        }
+        if (s.output.isEmpty() && s.quitting && !s.busy) {
+            close(s);
+            return;
+        }
+        dispatch(s);
+        updateInterest(s);
+    }
+
+    /**
+     * Reads while there is room for more commands and the client keeps up with its responses;
+     * writes while responses are waiting.
+     */
+    private void updateInterest(Session s) {
+        if (s.closed) {
+            return;
+        }
+        int ops = 0;
+        if (!s.quitting && s.outputBytes < outputLimit && s.pending.size() < MAX_PENDING) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!s.output.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        s.key.interestOps(ops);
+    }
+
+    private void closeIdle() {
+        long now = System.nanoTime();
+        for (Session s : new ArrayList<>(sessions)) {
+            if (!s.busy && now - s.lastActive > idleTimeoutNanos) {
+                timedOut++;
+                close(s);
+            }
+        }
+    }
+
+    private void close(Session s) {
+        if (s.closed) {
+            return;
+        }
+        s.closed = true;
+        sessions.remove(s);
+        s.key.cancel();
+        try {
+            s.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (!s.busy) {
+            closeQuery(s);
+        }
+    }
+
+    /** Closes the session's database connection, once no worker uses it any more. */
+    private static void closeQuery(Session s) {
+        if (!s.opened) {
+            return;
+        }
+        try {
+            s.query.closeConnection();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "flight server: port=" + port + " sessions=" + sessions.size() + "/" + maxSessions
+            + " accepted=" + accepted + " rejected=" + rejected + " timed out=" + timedOut
+            + " commands=" + commands.get() + "\nflight server batch latency: " + batchLatency + "\n"
+            + (pool != null ? pool : "");
+    }
+
+    public static void main(String[] args) throws Exception {
+        FlightServer server = new FlightServer(System.getProperty("config", FlightService.DBCONFIG_FILENAME));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.print(server)));
+        System.out.println("listening on port " + server.port());
+        server.run();
+    }
+}
@@ -1,5 +1,9 @@
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -16,11 +20,13 @@ public class FlightService
     System.out.println(" *** Please enter one of the following commands *** ");
     System.out.println("> create <username> <password> <initial amount>");
     System.out.println("> login <username> <password>");
-    System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+    System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries> [<max flights>]");
+    System.out.println("  (itineraries of more than 2 flights are listed as \"Itinerary -\" and cannot be booked)");
     System.out.println("> book <itinerary id>");
     System.out.println("> pay <reservation id>");
-    System.out.println("> reservations");
+    System.out.println("> reservations [<after reservation id> <page size>]");
     System.out.println("> cancel <reservation id>");
+    System.out.println("> stats [reset]");
     System.out.println("> quit");
   }
 
@@ -40,6 +46,15 @@ public class FlightService
   }
 
   public static String execute (Query q, String command)
+  {
+    return execute(q, command, null);
+  }
+
+  /**
+   * Same as {@link #execute(Query, String)}, except that regular searches print their
+   * itineraries to {@code out} while they are read when it is not null, and return "".
+   */
+  public static String execute (Query q, String command, PrintStream out)
   {
     String response;
 
@@ -67,8 +82,12 @@ public class FlightService
       {
         String username = tokens[1];
         String password = tokens[2];
-        int initAmount = Integer.parseInt(tokens[3]);
-        response = q.transaction_createCustomer(username, password, initAmount);
+        try
+        {
+          int initAmount = Integer.parseInt(tokens[3]);
+          response = q.transaction_createCustomer(username, password, initAmount);
+        }
+        catch (NumberFormatException e) { response = "Failed to parse integer"; }
       }
       else
         response = "Error: Please provide a username, password, and initial amount in the account";
@@ -77,7 +96,7 @@ public class FlightService
     else if (tokens[0].equals("search"))
     {
 				/* search for flights */
-      if (tokens.length == 6)
+      if (tokens.length == 6 || tokens.length == 7)
       {
         String originCity = tokens[1];
         String destinationCity = tokens[2];
@@ -90,12 +109,20 @@ public class FlightService
           count = Integer.valueOf(tokens[5]);
           //System.out.println("Searching for flights");
           //response = q.transaction_search_unsafe(originCity, destinationCity, direct, day, count);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
+          if (tokens.length == 7)
+            response = q.transaction_search(originCity, destinationCity, direct, day, count, Integer.parseInt(tokens[6]));
+          else if (out != null)
+          {
+            q.transaction_search(originCity, destinationCity, direct, day, count, out);
+            response = "";
+          }
+          else
+            response = q.transaction_search(originCity, destinationCity, direct, day, count);
         }
         catch (NumberFormatException e) { response = "Failed to parse integer"; }
       }
       else
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
+        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries> [<max flights>]";
     }
 
     else if (tokens[0].equals("book"))
@@ -103,9 +130,13 @@ public class FlightService
 				/* book a flight ticket */
       if (tokens.length == 2)
       {
-        int itinerary_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Booking itinerary.");
-        response = q.transaction_book(itinerary_id);
+        try
+        {
+          int itinerary_id = Integer.parseInt(tokens[1]);
+          //System.out.println("Booking itinerary.");
+          response = q.transaction_book(itinerary_id);
+        }
+        catch (NumberFormatException e) { response = "Failed to parse integer"; }
       }
       else
         response = "Error: Please provide an itinerary_id";
@@ -114,7 +145,21 @@ public class FlightService
     else if (tokens[0].equals("reservations"))
     {
 				/* list all reservations */
-      response = q.transaction_reservations();
+      if (tokens.length == 1)
+        response = q.transaction_reservations();
+      else if (tokens.length == 3)
+      {
+        /* list one page of reservations */
+        try
+        {
+          int afterReservationId = Integer.parseInt(tokens[1]);
+          int pageSize = Integer.parseInt(tokens[2]);
+          response = q.transaction_reservations(afterReservationId, pageSize);
+        }
+        catch (NumberFormatException e) { response = "Failed to parse integer"; }
+      }
+      else
+        response = "Error: Please provide no parameters, or <after reservation id> <page size>";
     }
 
     else if (tokens[0].equals("pay"))
@@ -122,9 +167,13 @@ public class FlightService
       /* pay for an unpaid reservation */
       if (tokens.length == 2)
       {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Paying reservation.");
-        response = q.transaction_pay(reservation_id);
+        try
+        {
+          int reservation_id = Integer.parseInt(tokens[1]);
+          //System.out.println("Paying reservation.");
+          response = q.transaction_pay(reservation_id);
+        }
+        catch (NumberFormatException e) { response = "Failed to parse integer"; }
       }
       else
         response = "Error: Please provide a reservation_id";
@@ -135,14 +184,35 @@ public class FlightService
 				/* cancel a reservation */
       if (tokens.length == 2)
       {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Canceling reservation.");
-        response = q.transaction_cancel(reservation_id);
+        try
+        {
+          int reservation_id = Integer.parseInt(tokens[1]);
+          //System.out.println("Canceling reservation.");
+          response = q.transaction_cancel(reservation_id);
+        }
+        catch (NumberFormatException e) { response = "Failed to parse integer"; }
       }
       else
         response = "Error: Please provide a reservation_id";
     }
 
+    else if (tokens[0].equals("stats"))
+    {
+      /* timings of the transactions of every session so far */
+      QueryStats stats = QueryStats.shared();
+      if (stats == null)
+        response = "Statistics are disabled\n";
+      else if (tokens.length == 2 && tokens[1].equals("reset"))
+      {
+        stats.reset();
+        response = "Statistics reset\n";
+      }
+      else if (tokens.length == 1)
+        response = stats.toString();
+      else
+        response = "Error: Please provide no parameters, or reset";
+    }
+
     else if (tokens[0].equals("quit"))
       response = "Goodbye\n";
 
@@ -152,18 +222,32 @@ public class FlightService
     return response;
   }
 
+  /**
+   * Executes a script of commands for session {@code q} through the shared
+   * {@link CommandPipeline}, which runs consecutive searches and reservation listings
+   * together.
+   *
+   * @return one response per command, in order
+   */
+  public static List<String> executeBatch (Query q, List<String> commands) throws IOException
+  {
+    return CommandPipeline.shared(DBCONFIG_FILENAME).execute(q, commands);
+  }
+
   /* REPL (Read-Execute-Print-Loop) */
   public static void menu(Query q) throws Exception
   {
+    BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
     while (true)
     {
       usage();
 
-      BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
       System.out.print("> ");
 
       String command = r.readLine();
-      String response = execute(q, command);
+      if (command == null)
+        break;
+      String response = execute(q, command, System.out);
       System.out.print(response);
 
       if (response.equals("Goodbye\n"))
@@ -177,7 +261,21 @@ public class FlightService
     Query q = new Query(DBCONFIG_FILENAME);
     q.openConnection();
     q.prepareStatements();
-    menu(q); /* menu(...) does the real work */
+    if (args.length == 1)
+    {
+      /* batch mode: run the commands of a script, one per line, # starts a comment */
+      List<String> commands = new ArrayList<>();
+      for (String line : Files.readAllLines(Paths.get(args[0])))
+      {
+        String command = line.split("#", 2)[0].trim();
+        if (!command.isEmpty())
+          commands.add(command);
+      }
+      for (String response : executeBatch(q, commands))
+        System.out.print(response);
+    }
+    else
+      menu(q); /* menu(...) does the real work */
     q.closeConnection();
   }
 
@@ -0,0 +1,449 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fills the FLIGHTS table with a synthetic July schedule, so that benchmarks do not depend
+ * on the real dataset being loaded by hand.
+ *
+ * The schedule is shaped like a real one:
+ * <ul>
+ * <li>city popularity is Zipf distributed, so a few cities see most of the traffic</li>
+ * <li>the most popular cities are hubs: most flights start or end at one, usually flown
+ * by the hub's home carrier</li>
+ * <li>flights are spread over all 31 days, a little thinner on Saturdays</li>
+ * </ul>
+ * The first cities are real airports at their real coordinates, the others are made up
+ * towns spread over the continental US. Distance, duration and price of a flight follow
+ * from the great circle distance between its endpoints.
+ *
+ * Rows are generated in chunks of {@link #CHUNK} fids, each from its own seeded random
+ * stream, so the data only depends on the seed and not on how many threads load it. Every
+ * loader thread has its own connection and inserts {@link #ROWS_PER_INSERT} rows per INSERT
+ * statement, in JDBC batches committed together.
+ *
+ * Usage: {@code java FlightsGenerator <rows> [seed]}, rows may end in k or M (e.g. 5M), with
+ * the database in dbconn.properties. All reservations, bookings, flights and connections are
+ * deleted first. Settings are system properties: {@code -Dcities=400 -Dskew=1.0 -Dhubs=12
+ * -DhubShare=0.6 -Dthreads=4 -Dbatch=20} (INSERT statements per batch), and
+ * {@code -Dconnections=<depth>} to run BuildConnections after loading.
+ */
+public class FlightsGenerator {
+    private static final String COLUMNS = "fid, month_id, day_of_month, day_of_week_id, carrier_id, flight_num, "
+        + "origin_city, origin_state, dest_city, dest_state, departure_delay, taxi_out, arrival_delay, canceled, "
+        + "actual_time, distance, capacity, price";
+    private static final int COLUMN_COUNT = 18;
+
+    // SQL Server takes at most 2100 parameters per statement
+    static final int ROWS_PER_INSERT = 100;
+    static final int CHUNK = 100000;
+
+    static final int MONTH = 7;
+    static final int DAYS = 31;
+    // July 1st 2015 was a Wednesday
+    static final int FIRST_DAY_OF_WEEK = 3;
+
+    // city, state, latitude, longitude, home carrier; busiest first
+    private static final Object[][] AIRPORTS = {
+        {"Atlanta GA", "Georgia", 33.64, -84.43, "DL"},
+        {"Chicago IL", "Illinois", 41.98, -87.90, "UA"},
+        {"Dallas/Fort Worth TX", "Texas", 32.90, -97.04, "AA"},
+        {"Los Angeles CA", "California", 33.94, -118.41, "AA"},
+        {"Denver CO", "Colorado", 39.86, -104.67, "UA"},
+        {"New York NY", "New York", 40.64, -73.78, "B6"},
+        {"San Francisco CA", "California", 37.62, -122.38, "UA"},
+        {"Charlotte NC", "North Carolina", 35.21, -80.94, "AA"},
+        {"Las Vegas NV", "Nevada", 36.08, -115.15, "WN"},
+        {"Phoenix AZ", "Arizona", 33.43, -112.01, "AA"},
+        {"Houston TX", "Texas", 29.98, -95.34, "UA"},
+        {"Seattle WA", "Washington", 47.45, -122.31, "AS"},
+        {"Minneapolis MN", "Minnesota", 44.88, -93.22, "DL"},
+        {"Detroit MI", "Michigan", 42.21, -83.35, "DL"},
+        {"Orlando FL", "Florida", 28.43, -81.31, "WN"},
+        {"Newark NJ", "New Jersey", 40.69, -74.17, "UA"},
+        {"Boston MA", "Massachusetts", 42.36, -71.01, "B6"},
+        {"Salt Lake City UT", "Utah", 40.79, -111.98, "DL"},
+        {"Miami FL", "Florida", 25.79, -80.29, "AA"},
+        {"Philadelphia PA", "Pennsylvania", 39.87, -75.24, "AA"},
+        {"Washington DC", "Virginia", 38.85, -77.04, "AA"},
+        {"Baltimore MD", "Maryland", 39.18, -76.67, "WN"},
+        {"San Diego CA", "California", 32.73, -117.19, "WN"},
+        {"Tampa FL", "Florida", 27.98, -82.53, "WN"},
+        {"Portland OR", "Oregon", 45.59, -122.60, "AS"},
+        {"St. Louis MO", "Missouri", 38.75, -90.37, "WN"},
+        {"Nashville TN", "Tennessee", 36.12, -86.68, "WN"},
+        {"Austin TX", "Texas", 30.19, -97.67, "WN"},
+        {"Honolulu HI", "Hawaii", 21.32, -157.92, "HA"},
+        {"Kansas City MO", "Missouri", 39.30, -94.71, "WN"},
+        {"Anchorage AK", "Alaska", 61.17, -149.99, "AS"},
+        {"Kahului HI", "Hawaii", 20.90, -156.43, "HA"},
+    };
+
+    // states of the made up towns
+    private static final String[][] STATES = {
+        {"AL", "Alabama"}, {"AR", "Arkansas"}, {"IA", "Iowa"}, {"ID", "Idaho"}, {"IN", "Indiana"},
+        {"KS", "Kansas"}, {"KY", "Kentucky"}, {"LA", "Louisiana"}, {"ME", "Maine"}, {"MS", "Mississippi"},
+        {"MT", "Montana"}, {"ND", "North Dakota"}, {"NE", "Nebraska"}, {"NM", "New Mexico"}, {"OH", "Ohio"},
+        {"OK", "Oklahoma"}, {"SC", "South Carolina"}, {"SD", "South Dakota"}, {"WI", "Wisconsin"},
+        {"WV", "West Virginia"}, {"WY", "Wyoming"},
+    };
+
+    static final String[] CARRIERS = {"AA", "AS", "B6", "DL", "F9", "HA", "NK", "OO", "UA", "VX", "WN"};
+
+    // cities, by popularity rank
+    private final String[] cityNames;
+    private final String[] stateNames;
+    private final double[] latitude;
+    private final double[] longitude;
+    private final String[] homeCarrier;
+    // cumulative Zipf weights of the cities and of the hubs
+    private final double[] cityWeights;
+    private final double[] hubWeights;
+    private final double hubShare;
+    private final long seed;
+
+    /**
+     * @param seed seed of every random stream
+     * @param cities number of cities, at least 2
+     * @param skew Zipf exponent of city popularity, 0 for uniform
+     * @param hubs number of hub cities, the most popular ones
+     * @param hubShare fraction of flights that start or end at a hub
+     */
+    public FlightsGenerator(long seed, int cities, double skew, int hubs, double hubShare) {
+        if (cities < 2) {
+            throw new IllegalArgumentException("need at least 2 cities: " + cities);
+        }
+        this.seed = seed;
+        this.hubShare = hubs > 0 ? hubShare : 0;
+        cityNames = new String[cities];
+        stateNames = new String[cities];
+        latitude = new double[cities];
+        longitude = new double[cities];
+        homeCarrier = new String[cities];
+
+        Random random = new Random(seed);
+        for (int i = 0; i < cities; i++) {
+            if (i < AIRPORTS.length) {
+                cityNames[i] = (String) AIRPORTS[i][0];
+                stateNames[i] = (String) AIRPORTS[i][1];
+                latitude[i] = (Double) AIRPORTS[i][2];
+                longitude[i] = (Double) AIRPORTS[i][3];
+                homeCarrier[i] = (String) AIRPORTS[i][4];
+            } else {
+                String[] state = STATES[random.nextInt(STATES.length)];
+                cityNames[i] = "Town " + i + " " + state[0];
+                stateNames[i] = state[1];
+                latitude[i] = 26 + random.nextDouble() * 22;
+                longitude[i] = -123 + random.nextDouble() * 53;
+                homeCarrier[i] = CARRIERS[random.nextInt(CARRIERS.length)];
+            }
+        }
+        cityWeights = zipf(cities, skew);
+        hubWeights = zipf(Math.min(hubs, cities), skew);
+    }
+
+    /** Cumulative weights of ranks 1..n under a Zipf distribution with exponent {@code s}. */
+    private static double[] zipf(int n, double s) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, s);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int pick(double[] cumulative, Random random) {
+        double u = random.nextDouble();
+        int lo = 0, hi = cumulative.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulative[mid] < u) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Inserts flights with fids {@code 1..rows}, using {@code threads} connections.
+     *
+     * @param batch INSERT statements per JDBC batch and per transaction
+     */
+    public void load(String configFilename, int rows, int threads, int batch) throws Exception {
+        int chunks = (rows + CHUNK - 1) / CHUNK;
+        AtomicInteger nextChunk = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> loaders = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            loaders.add(pool.submit(() -> {
+                Connection conn = connect(configFilename);
+                try {
+                    for (int c; (c = nextChunk.getAndIncrement()) < chunks; ) {
+                        load(conn, c * CHUNK + 1, Math.min(rows, (c + 1) * CHUNK), batch);
+                    }
+                } finally {
+                    conn.close();
+                }
+                return null;
+            }));
+        }
+        pool.shutdown();
+        try {
+            for (Future<Void> f : loaders) {
+                f.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Inserts flights with fids {@code from..to}. {@code from} must start a chunk.
+     *
+     * @param batch INSERT statements per JDBC batch and per transaction
+     */
+    public void load(Connection conn, int from, int to, int batch) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        PreparedStatement insert = conn.prepareStatement(insertSql(ROWS_PER_INSERT));
+        Random random = null;
+        try {
+            int fid = from;
+            int statements = 0;
+            while (to - fid + 1 >= ROWS_PER_INSERT) {
+                for (int row = 0; row < ROWS_PER_INSERT; row++, fid++) {
+                    random = streamFor(fid, random);
+                    bind(insert, row * COLUMN_COUNT, fid, random);
+                }
+                insert.addBatch();
+                if (++statements % batch == 0) {
+                    insert.executeBatch();
+                    conn.commit();
+                }
+            }
+            if (statements % batch != 0) {
+                insert.executeBatch();
+            }
+            if (fid <= to) {
+                PreparedStatement tail = conn.prepareStatement(insertSql(to - fid + 1));
+                try {
+                    for (int row = 0; fid <= to; row++, fid++) {
+                        random = streamFor(fid, random);
+                        bind(tail, row * COLUMN_COUNT, fid, random);
+                    }
+                    tail.executeUpdate();
+                } finally {
+                    tail.close();
+                }
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            insert.close();
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /** The random stream of the chunk of {@code fid}, starting a new one at chunk boundaries. */
+    private Random streamFor(int fid, Random current) {
+        if (current == null || (fid - 1) % CHUNK == 0) {
+            return new Random(seed * 1000003 + (fid - 1) / CHUNK);
+        }
+        return current;
+    }
+
+    private static String insertSql(int rows) {
+        StringBuilder sql = new StringBuilder("INSERT INTO FLIGHTS (").append(COLUMNS).append(") VALUES ");
+        for (int row = 0; row < rows; row++) {
+            sql.append(row == 0 ? "(" : ", (");
+            for (int c = 0; c < COLUMN_COUNT; c++) {
+                sql.append(c == 0 ? "?" : ", ?");
+            }
+            sql.append(')');
+        }
+        return sql.toString();
+    }
+
+    /** Binds the columns of flight {@code fid} to the parameters after {@code offset}. */
+    void bind(PreparedStatement ps, int offset, int fid, Random random) throws SQLException {
+        int origin, dest;
+        if (random.nextDouble() < hubShare) {
+            int hub = pick(hubWeights, random);
+            int spoke;
+            do {
+                spoke = pick(cityWeights, random);
+            } while (spoke == hub);
+            boolean outbound = random.nextBoolean();
+            origin = outbound ? hub : spoke;
+            dest = outbound ? spoke : hub;
+        } else {
+            origin = pick(cityWeights, random);
+            do {
+                dest = pick(cityWeights, random);
+            } while (dest == origin);
+        }
+
+        int day, dayOfWeek;
+        do {
+            day = 1 + random.nextInt(DAYS);
+            dayOfWeek = (day - 1 + FIRST_DAY_OF_WEEK - 1) % 7 + 1;
+        } while (dayOfWeek == 6 && random.nextInt(5) == 0);
+
+        // hub flights are mostly flown by the hub's carrier
+        String carrier;
+        int hub = origin < hubWeights.length ? origin : dest < hubWeights.length ? dest : -1;
+        if (hub >= 0 && random.nextInt(10) < 7) {
+            carrier = homeCarrier[hub];
+        } else {
+            carrier = CARRIERS[random.nextInt(CARRIERS.length)];
+        }
+
+        int distance = distance(origin, dest);
+        int delay = Math.max(-15, (int) (random.nextGaussian() * 20));
+        ps.setInt(offset + 1, fid);
+        ps.setInt(offset + 2, MONTH);
+        ps.setInt(offset + 3, day);
+        ps.setInt(offset + 4, dayOfWeek);
+        ps.setString(offset + 5, carrier);
+        ps.setInt(offset + 6, 1 + random.nextInt(9999));
+        ps.setString(offset + 7, cityNames[origin]);
+        ps.setString(offset + 8, stateNames[origin]);
+        ps.setString(offset + 9, cityNames[dest]);
+        ps.setString(offset + 10, stateNames[dest]);
+        ps.setInt(offset + 11, delay);
+        ps.setInt(offset + 12, 10 + random.nextInt(20));
+        ps.setInt(offset + 13, delay + random.nextInt(21) - 10);
+        ps.setInt(offset + 14, 0);
+        // about 8 miles a minute plus taxi and climb
+        ps.setInt(offset + 15, 30 + distance / 8 + random.nextInt(21) - 10);
+        ps.setInt(offset + 16, distance);
+        ps.setInt(offset + 17, 1 + random.nextInt(20));
+        ps.setInt(offset + 18, 100 + distance / 10 + random.nextInt(500));
+    }
+
+    /** Great circle distance in miles. */
+    int distance(int a, int b) {
+        double lat1 = Math.toRadians(latitude[a]), lon1 = Math.toRadians(longitude[a]);
+        double lat2 = Math.toRadians(latitude[b]), lon2 = Math.toRadians(longitude[b]);
+        double h = Math.pow(Math.sin((lat2 - lat1) / 2), 2)
+            + Math.cos(lat1) * Math.cos(lat2) * Math.pow(Math.sin((lon2 - lon1) / 2), 2);
+        return (int) Math.round(2 * 3959 * Math.asin(Math.sqrt(h)));
+    }
+
+    /**
+     * A generator with the settings given as system properties, see the class comment.
+     */
+    static FlightsGenerator fromSystemProperties(long seed) {
+        return new FlightsGenerator(seed, Integer.getInteger("cities", 400),
+            Double.parseDouble(System.getProperty("skew", "1.0")), Integer.getInteger("hubs", 12),
+            Double.parseDouble(System.getProperty("hubShare", "0.6")));
+    }
+
+    /** Deletes all reservations, bookings, flights and connections. */
+    static void clear(Connection conn) throws SQLException {
+        Statement st = conn.createStatement();
+        try {
+            // stops the connections trigger, BuildConnections starts it again
+            st.executeUpdate("DELETE FROM ConnectionsDepth");
+            st.executeUpdate("TRUNCATE TABLE Connections");
+            st.executeUpdate("DELETE FROM Reservation");
+            st.executeUpdate("DELETE FROM Booking");
+            st.executeUpdate("DELETE FROM FLIGHTS");
+        } finally {
+            st.close();
+        }
+    }
+
+    /** Runs BuildConnections, which precomputes the best {@code depth} one-stop itineraries per route. */
+    static void buildConnections(String configFilename, int depth) throws Exception {
+        Connection conn = connect(configFilename);
+        try {
+            long start = System.nanoTime();
+            CallableStatement cs = conn.prepareCall("{call BuildConnections(?)}");
+            try {
+                cs.setInt(1, depth);
+                cs.execute();
+            } finally {
+                cs.close();
+            }
+            System.out.printf("built connections of depth %d in %.1f s%n", depth, (System.nanoTime() - start) / 1e9);
+        } finally {
+            conn.close();
+        }
+    }
+
+    /** Opens a connection to the database described by the flightservice.* settings. */
+    static Connection connect(String configFilename) throws IOException, ClassNotFoundException, SQLException {
+        Properties config = new Properties();
+        FileInputStream in = new FileInputStream(configFilename);
+        try {
+            config.load(in);
+        } finally {
+            in.close();
+        }
+        Class.forName(config.getProperty("flightservice.jdbc_driver"));
+        return DriverManager.getConnection(config.getProperty("flightservice.url"),
+            config.getProperty("flightservice.sqlazure_username"),
+            config.getProperty("flightservice.sqlazure_password"));
+    }
+
+    /** Parses a row count like 5000, 500k or 20M. */
+    static int rowCount(String s) {
+        s = s.trim();
+        char unit = Character.toUpperCase(s.charAt(s.length() - 1));
+        if (unit == 'K' || unit == 'M') {
+            long n = Long.parseLong(s.substring(0, s.length() - 1)) * (unit == 'K' ? 1000 : 1000000);
+            if (n > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("too many rows: " + s);
+            }
+            return (int) n;
+        }
+        return Integer.parseInt(s);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java FlightsGenerator <rows> [seed]");
+            System.exit(1);
+        }
+        int rows = rowCount(args[0]);
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 414;
+        Connection conn = connect(FlightService.DBCONFIG_FILENAME);
+        try {
+            clear(conn);
+        } finally {
+            conn.close();
+        }
+        long start = System.nanoTime();
+        fromSystemProperties(seed).load(FlightService.DBCONFIG_FILENAME, rows,
+            Integer.getInteger("threads", 4), Integer.getInteger("batch", 20));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("loaded %d flights in %.1f s (%.0f rows/s)%n", rows, seconds, rows / seconds);
+
+        Integer depth = Integer.getInteger("connections");
+        if (depth != null) {
+            buildConnections(FlightService.DBCONFIG_FILENAME, depth);
+        }
+    }
+}
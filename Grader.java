@@ -1,3 +1,4 @@
+import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -41,7 +42,10 @@ public class Grader
 
     User (List<String> cmds, List<String> results) throws Exception
     {
-      this.q = new Query(FlightService.DBCONFIG_FILENAME);
+      if (connections == null)
+        this.q = new Query(FlightService.DBCONFIG_FILENAME);
+      else
+        this.q = new Query(FlightService.DBCONFIG_FILENAME, connections);
       q.openConnection();
       q.prepareStatements();
 
@@ -157,6 +161,8 @@ public class Grader
   protected static ExecutorService pool;
   // folder name and path that contains the test cases
   protected static String casesFolder;
+  // connections shared by all users, only when run with -Dpool=<size>
+  protected static ConnectionPool connections;
 
   /**
    * Creates the thread pool to execute test cases with multiple users.
@@ -167,6 +173,24 @@ public class Grader
   {
     System.out.println("running setup");
     pool = Executors.newFixedThreadPool(MAX_USERS);
+
+    Integer poolSize = Integer.getInteger("pool");
+    if (poolSize != null)
+      connections = new ConnectionPool(FlightService.DBCONFIG_FILENAME, poolSize, 30000);
+  }
+
+  /**
+   * Closes the shared connections, if any, after the entire test suite is executed.
+   */
+  @AfterClass
+  public static void teardown()
+  {
+    if (connections != null)
+    {
+      System.out.print(connections);
+      System.out.print(StatementCache.summary());
+      connections.close();
+    }
   }
 
   protected String file;
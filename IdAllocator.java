@@ -0,0 +1,115 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out unique ids from a named counter row in the IdBlocks table, replacing
+ * {@code COUNT(*)} scans for picking the next id.
+ *
+ * With a block size of one, every id is taken from the counter inside the caller's
+ * transaction: a rolled back booking also rolls back the counter, so ids stay dense.
+ * With larger blocks, {@link #prefetch} reserves a whole block in its own short
+ * autocommit statement and ids are then handed out locally without touching the counter.
+ * Ids that are dropped with the connection leave gaps, but an id is never handed out twice.
+ *
+ * An allocator belongs to one connection and must only be used by one thread at a time.
+ */
+public class IdAllocator {
+    private static final String NEXT_BLOCK_SQL =
+        "UPDATE IdBlocks SET next_id = next_id + ? OUTPUT deleted.next_id WHERE name = ?";
+    private static final String RESET_SQL = "UPDATE IdBlocks SET next_id = 1 WHERE name = ?";
+
+    // bumped by reset(), so that blocks held by other connections of this JVM are dropped
+    private static final AtomicInteger generation = new AtomicInteger();
+
+    private final String name;
+    private final int blockSize;
+
+    // ids [next, end) are reserved for this connection
+    private int next;
+    private int end;
+    private int blockGeneration;
+
+    /**
+     * @param name the counter row in IdBlocks
+     * @param blockSize how many ids to reserve with one counter update
+     */
+    public IdAllocator(String name, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("id block size must be positive: " + blockSize);
+        }
+        this.name = name;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Makes sure a block of ids is held, so that {@link #next} does not need to update the
+     * counter row. Call this outside of a transaction; it does nothing with a block size of one.
+     */
+    public void prefetch(StatementCache statements) throws SQLException {
+        if (blockSize > 1 && !hasId()) {
+            fetch(statements);
+        }
+    }
+
+    /**
+     * @return a new id, taken from the counter row if no prefetched id is left
+     */
+    public int next(StatementCache statements) throws SQLException {
+        if (!hasId()) {
+            fetch(statements);
+        }
+        return next++;
+    }
+
+    /**
+     * @return an id prefetched by {@link #prefetch}, or 0 if none is held, e.g. with a block
+     * size of one; the caller then takes the id from the counter row in its own transaction
+     */
+    public int nextPrefetched() {
+        return hasId() ? next++ : 0;
+    }
+
+    /**
+     * Gives back the last id returned by {@link #next} when it ended up not being used,
+     * e.g. because the booking was rolled back. Only prefetched ids can be given back:
+     * with a block size of one the counter update is rolled back with the transaction.
+     */
+    public void unused(int id) {
+        if (blockSize > 1 && id == next - 1 && blockGeneration == generation.get()) {
+            next--;
+        }
+    }
+
+    /**
+     * Restarts the counter at 1 and drops the blocks held by every allocator of this JVM.
+     */
+    public void reset(StatementCache statements) throws SQLException {
+        PreparedStatement ps = statements.get(RESET_SQL);
+        ps.setString(1, name);
+        ps.executeUpdate();
+        generation.incrementAndGet();
+        next = end = 0;
+    }
+
+    private boolean hasId() {
+        return next < end && blockGeneration == generation.get();
+    }
+
+    private void fetch(StatementCache statements) throws SQLException {
+        int g = generation.get();
+        PreparedStatement ps = statements.get(NEXT_BLOCK_SQL);
+        ps.setInt(1, blockSize);
+        ps.setString(2, name);
+        ResultSet rs = ps.executeQuery();
+        if (!rs.next()) {
+            rs.close();
+            throw new SQLException("No id counter named '" + name + "' in IdBlocks");
+        }
+        next = rs.getInt(1);
+        rs.close();
+        end = next + blockSize;
+        blockGeneration = g;
+    }
+}
@@ -0,0 +1,270 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Reports the estimated plan cost of the search and reservation statements of the
+ * {@code cases/} workloads, without and with the indexes created in createTables.sql.
+ *
+ * The commands of every case file are replayed as the statements Query would run, with
+ * their parameters inlined, and planned with SHOWPLAN_XML so nothing is executed. The
+ * indexes are dropped for the first pass and created again for the second one, so they
+ * exist afterwards either way.
+ *
+ * Usage: {@code java IndexAdvisor [-Dfolder=cases] [-Dschema=createTables.sql]}, with the
+ * database in dbconn.properties.
+ */
+public class IndexAdvisor {
+    private static final Pattern CREATE_INDEX = Pattern.compile(
+        "CREATE\\s+(?:UNIQUE\\s+)?(?:NONCLUSTERED\\s+)?INDEX\\s+(\\w+)\\s+ON\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SUBTREE_COST = Pattern.compile("StatementSubTreeCost=\"([^\"]+)\"");
+
+    /** A replayed statement: the Query statement it comes from and its inlined SQL. */
+    static class Replay {
+        final String name;
+        final String sql;
+
+        Replay(String name, String sql) {
+            this.name = name;
+            this.sql = sql;
+        }
+    }
+
+    private final Connection conn;
+
+    public IndexAdvisor(Connection conn) {
+        this.conn = conn;
+    }
+
+    /**
+     * @return the CREATE INDEX statements of a schema script
+     */
+    static List<String> indexStatements(String schemaFilename) throws IOException {
+        StringBuilder script = new StringBuilder();
+        for (String line : Files.readAllLines(Paths.get(schemaFilename))) {
+            script.append(line.split("--", 2)[0]).append('\n');
+        }
+        List<String> indexes = new ArrayList<>();
+        for (String statement : script.toString().split(";")) {
+            if (CREATE_INDEX.matcher(statement).find()) {
+                indexes.add(statement.trim());
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Translates the commands of a case file into the statements Query runs for them.
+     * Searches and reservation lookups are replayed; bookings only touch primary keys.
+     */
+    static List<Replay> workload(String caseFilename) throws IOException {
+        List<Replay> replays = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(caseFilename));
+        try {
+            boolean isCmd = true;
+            String username = null;
+            String l;
+            while ((l = reader.readLine()) != null) {
+                if (l.startsWith(Grader.COMMENTS)) {
+                    continue;
+                }
+                if (l.startsWith(Grader.DELIMITER)) {
+                    isCmd = !isCmd;
+                    username = null;
+                    continue;
+                }
+                if (!isCmd) {
+                    continue;
+                }
+                String[] tokens = FlightService.tokenize(l.split(Grader.COMMENTS, 2)[0].trim());
+                if (tokens.length == 0) {
+                    continue;
+                }
+                switch (tokens[0]) {
+                    case "login":
+                        if (tokens.length == 3) {
+                            username = tokens[1];
+                        }
+                        break;
+                    case "search":
+                        if (tokens.length == 6) {
+                            String origin = tokens[1], dest = tokens[2];
+                            int day = Integer.parseInt(tokens[4]), k = Integer.parseInt(tokens[5]);
+                            replays.add(new Replay("search one hop",
+                                inline(Query.SEARCH_ONE_HOP_SQL, k, origin, dest, day)));
+                            if (Integer.parseInt(tokens[3]) != 1) {
+                                replays.add(new Replay("search two hop",
+                                    inline(Query.SEARCH_TWO_HOP_SQL, k, origin, dest, day)));
+                            }
+                        }
+                        break;
+                    case "reservations":
+                        if (username != null) {
+                            replays.add(new Replay("reservations", inline(Query.SEARCH_RESERVATION_SQL, username)));
+                        }
+                        break;
+                    case "pay":
+                        if (username != null && tokens.length == 2) {
+                            replays.add(new Replay("pay", inline(Query.SEARCH_UNPAID_SQL,
+                                username, Integer.parseInt(tokens[1]))));
+                        }
+                        break;
+                    case "cancel":
+                        if (username != null && tokens.length == 2) {
+                            replays.add(new Replay("cancel", inline(Query.RESERVATION_FLIGHTS_SQL,
+                                username, Integer.parseInt(tokens[1]))));
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return replays;
+    }
+
+    /** Replaces the parameter markers of {@code sql} with literals, in order. */
+    static String inline(String sql, Object... params) {
+        StringBuilder sb = new StringBuilder();
+        int p = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c != '?') {
+                sb.append(c);
+            } else if (params[p] instanceof String) {
+                sb.append('\'').append(((String) params[p++]).replace("'", "''")).append('\'');
+            } else {
+                sb.append(params[p++]);
+            }
+        }
+        if (p != params.length) {
+            throw new IllegalArgumentException(params.length + " parameters for " + p + " markers: " + sql);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the total estimated cost of the replayed statements, by statement name
+     */
+    Map<String, Double> cost(List<Replay> replays) throws SQLException {
+        Map<String, Double> costs = new LinkedHashMap<>();
+        Statement st = conn.createStatement();
+        try {
+            st.execute("SET SHOWPLAN_XML ON");
+            try {
+                for (Replay r : replays) {
+                    ResultSet rs = st.executeQuery(r.sql);
+                    double cost = 0;
+                    while (rs.next()) {
+                        Matcher m = SUBTREE_COST.matcher(rs.getString(1));
+                        if (m.find()) {
+                            cost += Double.parseDouble(m.group(1));
+                        }
+                    }
+                    rs.close();
+                    costs.merge(r.name, cost, Double::sum);
+                }
+            } finally {
+                st.execute("SET SHOWPLAN_XML OFF");
+            }
+        } finally {
+            st.close();
+        }
+        return costs;
+    }
+
+    void dropIndexes(List<String> indexes) throws SQLException {
+        Statement st = conn.createStatement();
+        try {
+            for (String index : indexes) {
+                Matcher m = CREATE_INDEX.matcher(index);
+                m.find();
+                st.executeUpdate("DROP INDEX IF EXISTS " + m.group(1) + " ON " + m.group(2));
+            }
+        } finally {
+            st.close();
+        }
+    }
+
+    /** Creates the indexes, replacing the ones that still exist, e.g. after a failed drop. */
+    void createIndexes(List<String> indexes) throws SQLException {
+        dropIndexes(indexes);
+        Statement st = conn.createStatement();
+        try {
+            for (String index : indexes) {
+                st.executeUpdate(index);
+            }
+        } finally {
+            st.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String folder = System.getProperty("folder", "cases");
+        List<String> indexes = indexStatements(System.getProperty("schema", "createTables.sql"));
+
+        List<String> files;
+        try (Stream<Path> paths = Files.walk(Paths.get(folder))) {
+            files = paths.filter(Files::isRegularFile).map(Path::toString).sorted().collect(Collectors.toList());
+        }
+        List<Replay> replays = new ArrayList<>();
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        // a statement planned once per distinct text is enough
+        Set<String> seen = new LinkedHashSet<>();
+        for (String file : files) {
+            for (Replay r : workload(file)) {
+                if (seen.add(r.sql)) {
+                    replays.add(r);
+                    counts.merge(r.name, 1, Integer::sum);
+                }
+            }
+        }
+        System.out.println("replaying " + replays.size() + " statements from " + files.size() + " files in " + folder);
+
+        Connection conn = FlightsGenerator.connect(FlightService.DBCONFIG_FILENAME);
+        try {
+            IndexAdvisor advisor = new IndexAdvisor(conn);
+            Map<String, Double> before;
+            try {
+                advisor.dropIndexes(indexes);
+                before = advisor.cost(replays);
+            } finally {
+                // the workload's indexes must not stay dropped if planning failed
+                advisor.createIndexes(indexes);
+            }
+            Map<String, Double> after = advisor.cost(replays);
+
+            System.out.printf("%-16s %5s %14s %14s %8s%n", "statement", "n", "cost before", "cost after", "change");
+            for (Map.Entry<String, Double> e : before.entrySet()) {
+                double b = e.getValue(), a = after.get(e.getKey());
+                System.out.printf("%-16s %5d %14.4f %14.4f %7.1f%%%n",
+                    e.getKey(), counts.get(e.getKey()), b, a, b == 0 ? 0.0 : 100.0 * (a - b) / b);
+            }
+            System.out.println("indexes:");
+            for (String index : indexes) {
+                System.out.println("  " + index.replaceAll("\\s+", " "));
+            }
+        } finally {
+            conn.close();
+        }
+    }
+}
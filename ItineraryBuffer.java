@@ -0,0 +1,103 @@
+import java.util.Arrays;
+
+/**
+ * The itineraries of the last search of a session, kept in parallel int arrays so that
+ * they can be numbered, booked and cached without boxing.
+ *
+ * A session keeps one buffer and clears it before every search; the arrays only grow,
+ * so once they are as large as the biggest search the session ran, no search allocates.
+ * The fids of itinerary {@code i} are at {@code fids[i * maxFlights ...]}.
+ */
+public class ItineraryBuffer {
+    private final int maxFlights;
+    private int size;
+    private int[] times;
+    private int[] days;
+    private int[] flightCounts;
+    private int[] fids;
+
+    /**
+     * @param maxFlights most flights in one itinerary
+     */
+    public ItineraryBuffer(int maxFlights) {
+        this(maxFlights, 16);
+    }
+
+    private ItineraryBuffer(int maxFlights, int capacity) {
+        this.maxFlights = maxFlights;
+        times = new int[capacity];
+        days = new int[capacity];
+        flightCounts = new int[capacity];
+        fids = new int[capacity * maxFlights];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Appends an itinerary without flights; add them with {@link #addFlight}.
+     *
+     * @return the number of the new itinerary
+     */
+    public int add(int totalTime, int dayOfMonth) {
+        if (size == times.length) {
+            int capacity = size * 2;
+            times = Arrays.copyOf(times, capacity);
+            days = Arrays.copyOf(days, capacity);
+            flightCounts = Arrays.copyOf(flightCounts, capacity);
+            fids = Arrays.copyOf(fids, capacity * maxFlights);
+        }
+        times[size] = totalTime;
+        days[size] = dayOfMonth;
+        flightCounts[size] = 0;
+        return size++;
+    }
+
+    /** Appends a flight to the last itinerary. */
+    public void addFlight(int fid) {
+        int i = size - 1;
+        if (flightCounts[i] == maxFlights) {
+            throw new IllegalStateException("more than " + maxFlights + " flights in itinerary " + i);
+        }
+        fids[i * maxFlights + flightCounts[i]++] = fid;
+    }
+
+    public int totalTime(int i) {
+        return times[i];
+    }
+
+    public int dayOfMonth(int i) {
+        return days[i];
+    }
+
+    public int flightCount(int i) {
+        return flightCounts[i];
+    }
+
+    public int fid(int i, int leg) {
+        return fids[i * maxFlights + leg];
+    }
+
+    /** Replaces the itineraries of this buffer with those of {@code other}. */
+    public void copyFrom(ItineraryBuffer other) {
+        clear();
+        for (int i = 0; i < other.size; i++) {
+            add(other.times[i], other.days[i]);
+            for (int leg = 0; leg < other.flightCounts[i]; leg++) {
+                addFlight(other.fid(i, leg));
+            }
+        }
+    }
+
+    /** @return a buffer of exactly this size holding the same itineraries */
+    public ItineraryBuffer copy() {
+        ItineraryBuffer copy = new ItineraryBuffer(maxFlights, Math.max(size, 1));
+        copy.copyFrom(this);
+        return copy;
+    }
+}
@@ -0,0 +1,37 @@
+import java.sql.SQLException;
+
+/**
+ * A forward-only stream of candidate itineraries, ordered by total flight time.
+ *
+ * Search results come either from the database (one cursor per query) or from the
+ * in-memory {@code FlightIndex}; {@code Query} only talks to this interface so that
+ * both produce exactly the same "Itinerary N: ..." output.
+ */
+public interface ItineraryCursor {
+    /**
+     * Advances to the next itinerary.
+     *
+     * @return false once the cursor is exhausted
+     */
+    boolean next() throws SQLException;
+
+    /** @return number of flights in the current itinerary */
+    int flightCount();
+
+    /** @return total flight time of the current itinerary, in minutes */
+    int totalTime() throws SQLException;
+
+    /** @return day of the month of the current itinerary */
+    int dayOfMonth() throws SQLException;
+
+    /** @return fid of the given leg (0-based) of the current itinerary */
+    int fid(int leg) throws SQLException;
+
+    /**
+     * Writes the given leg of the current itinerary, formatted like {@code Query.Flight#toString()}
+     * and followed by a newline.
+     */
+    void writeFlight(int leg, ResponseWriter out) throws SQLException;
+
+    void close() throws SQLException;
+}
@@ -0,0 +1,112 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds.
+ *
+ * Values are bucketed log-linearly, like an HDR histogram with 3 significant bits: every
+ * power of two is split into 8 sub-buckets, so any reported percentile is within 12.5% of
+ * the recorded value. Recording is a couple of atomic increments and never blocks, which
+ * makes it safe to call from every session thread.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(index(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    /** @return sum of all recorded values, in nanoseconds */
+    public long sum() {
+        return sum.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @param p a fraction between 0 and 1
+     * @return an upper bound of the value at that percentile, in nanoseconds
+     */
+    public long percentile(double p) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(lowerBound(i + 1) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * One line summary in milliseconds, e.g. "n=12 mean=1.204 p50=0.983 p99=4.100 max=4.096".
+     */
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f p999=%.3f max=%.3f ms",
+            count(), mean() / 1e6, percentile(0.50) / 1e6, percentile(0.90) / 1e6,
+            percentile(0.99) / 1e6, percentile(0.999) / 1e6, max() / 1e6);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (msb - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        if (index >= BUCKETS) {
+            return Long.MAX_VALUE;
+        }
+        int msb = index / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        return (1L << msb) | ((long) sub << (msb - SUB_BITS));
+    }
+}
@@ -0,0 +1,310 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Puts production-like concurrency on the flight service: thousands of simulated users, each a
+ * {@code Grader.User} session running commands through {@link FlightService#execute}.
+ *
+ * A user's visit is one session from login to quit. Visits either replay the users of the
+ * test cases read by {@code Grader.parse}, with usernames made unique per visit, or are drawn
+ * from a weighted mix of commands. Visits start in a closed loop, where every user starts
+ * its next visit as soon as the last one ended, or in an open loop at a fixed arrival rate,
+ * whatever the response times. Users run on virtual threads when the JVM has them.
+ *
+ * Reported per command: throughput, aborts (responses saying the command failed) and a
+ * latency histogram. In an open loop, visit latency counts from the scheduled arrival, so
+ * time spent waiting for a free user is not hidden.
+ *
+ * The customer tables are cleared first. Settings are system properties:
+ * <ul>
+ * <li>{@code -Dusers=1000}: simulated users, the most visits running at once</li>
+ * <li>{@code -Drate=<visits per second>}: open loop; closed loop if not set</li>
+ * <li>{@code -Dseconds=30}: how long visits keep starting</li>
+ * <li>{@code -Dcases=<folder>}: replay the test cases in the folder instead of the mix</li>
+ * <li>{@code -Dmix=create:1,login:1,search:10,book:3,pay:2,cancel:1}: relative weights of the
+ * commands of a visit, after it created or logged in its user</li>
+ * <li>{@code -Dcommands=20}: commands per visit of the mix, besides create, login and quit</li>
+ * <li>{@code -Dpool=<size>}: users share that many connections; otherwise each visit opens one</li>
+ * </ul>
+ * Searches of the mix use the routes of the {@code cases/} files, e.g. "Seattle WA" to "Boston MA".
+ */
+public class LoadDriver {
+    // routes of the cases/ files, searched by the mix
+    private static final String[][] ROUTES = {
+        {"Seattle WA", "Boston MA"}, {"Seattle WA", "Los Angeles CA"}, {"Kahului HI", "Los Angeles CA"},
+        {"Seattle WA", "San Francisco CA"}, {"Boston MA", "Seattle WA"}
+    };
+
+    private final List<String> ops = new ArrayList<>();
+    private final int[] cumulativeWeights;
+    private final int commandsPerVisit;
+    private final List<List<String>> scripts;
+
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> aborts = new ConcurrentHashMap<>();
+    private final LatencyHistogram visitLatency = new LatencyHistogram();
+    private final AtomicLong visits = new AtomicLong();
+    private final AtomicLong failedVisits = new AtomicLong();
+    private final AtomicLong visitIds = new AtomicLong();
+
+    /**
+     * @param mix weights of the commands, e.g. "search:10,book:3"
+     * @param scripts commands of the users to replay, or null to draw visits from the mix
+     */
+    public LoadDriver(String mix, int commandsPerVisit, List<List<String>> scripts) {
+        List<Integer> weights = new ArrayList<>();
+        int total = 0;
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            total += Integer.parseInt(parts[1].trim());
+            ops.add(parts[0].trim());
+            weights.add(total);
+        }
+        this.cumulativeWeights = weights.stream().mapToInt(Integer::intValue).toArray();
+        this.commandsPerVisit = commandsPerVisit;
+        this.scripts = scripts;
+    }
+
+    /**
+     * @return the commands of every user of every test case in {@code folder}
+     */
+    static List<List<String>> scripts(String folder) throws Exception {
+        List<String> files;
+        try (Stream<Path> paths = Files.walk(Paths.get(folder))) {
+            files = paths.filter(Files::isRegularFile).map(Path::toString).sorted().collect(Collectors.toList());
+        }
+        List<List<String>> scripts = new ArrayList<>();
+        for (String file : files) {
+            for (Grader.User u : Grader.parse(file)) {
+                scripts.add(u.cmds);
+                u.shutdown();
+            }
+        }
+        return scripts;
+    }
+
+    /**
+     * Replaces the usernames of the create and login commands of a replayed script, so that
+     * visits replaying the same script do not share users.
+     */
+    static List<String> rename(List<String> script, String suffix) {
+        List<String> renamed = new ArrayList<>(script.size());
+        for (String command : script) {
+            String[] tokens = FlightService.tokenize(command.trim());
+            if (tokens.length >= 3 && (tokens[0].equals("create") || tokens[0].equals("login"))) {
+                // the rest of the command after the username
+                String rest = command.trim().substring(tokens[0].length()).trim().substring(tokens[1].length());
+                command = tokens[0] + " " + tokens[1] + suffix + rest;
+            }
+            renamed.add(command);
+        }
+        return renamed;
+    }
+
+    /**
+     * The commands of a visit drawn from the mix. Booking, paying and canceling refer to the
+     * last search and booking; the responses decide the ids, see {@link #resolve}.
+     */
+    List<String> mixVisit(long id, Random random) {
+        List<String> visit = new ArrayList<>();
+        String user = "load" + id;
+        visit.add("create " + user + " " + user + " 1000000");
+        visit.add("login " + user + " " + user);
+        for (int i = 0; i < commandsPerVisit; i++) {
+            String op = pick(random);
+            switch (op) {
+                case "create":
+                    visit.add("create " + user + "_" + i + " " + user + " 1000000");
+                    break;
+                case "login":
+                    visit.add("login " + user + " " + user);
+                    break;
+                case "search": {
+                    String[] route = ROUTES[random.nextInt(ROUTES.length)];
+                    visit.add("search \"" + route[0] + "\" \"" + route[1] + "\" " + random.nextInt(2) + " "
+                        + (1 + random.nextInt(31)) + " " + (1 + random.nextInt(10)));
+                    break;
+                }
+                default:
+                    visit.add(op);
+                    break;
+            }
+        }
+        visit.add("quit");
+        return visit;
+    }
+
+    private String pick(Random random) {
+        int r = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; ; i++) {
+            if (r < cumulativeWeights[i]) {
+                return ops.get(i);
+            }
+        }
+    }
+
+    /**
+     * Completes a bare "book", "pay" or "cancel" of the mix with the itinerary or reservation
+     * it applies to; other commands are returned as they are.
+     */
+    static String resolve(String command, int lastReservation, Random random) {
+        switch (command) {
+            case "book":
+                return "book " + random.nextInt(2);
+            case "pay":
+            case "cancel":
+                return command + " " + Math.max(lastReservation, 1);
+            default:
+                return command;
+        }
+    }
+
+    /** @return whether the response says the command was not carried out */
+    static boolean aborted(String response) {
+        return response.contains("failed") || response.startsWith("Failed") || response.startsWith("Error")
+            || response.startsWith("Cannot") || response.startsWith("You cannot")
+            || response.startsWith("No such") || response.startsWith("Too many");
+    }
+
+    /**
+     * Runs one visit on a new session.
+     *
+     * @param arrival when the visit was due to start, from {@link System#nanoTime()}
+     */
+    void visit(long arrival) {
+        long id = visitIds.incrementAndGet();
+        Random random = ThreadLocalRandom.current();
+        List<String> commands = scripts == null
+            ? mixVisit(id, random)
+            : rename(scripts.get(random.nextInt(scripts.size())), "_" + id);
+        Grader.User user;
+        try {
+            user = new Grader.User(commands, Collections.<String>emptyList());
+        } catch (Exception e) {
+            e.printStackTrace();
+            failedVisits.incrementAndGet();
+            return;
+        }
+        try {
+            int lastReservation = 0;
+            for (String command : commands) {
+                command = resolve(command, lastReservation, random);
+                String[] tokens = FlightService.tokenize(command.trim());
+                String name = tokens.length == 0 ? "" : tokens[0];
+                long start = System.nanoTime();
+                String response = FlightService.execute(user.q, command);
+                latencies.computeIfAbsent(name, k -> new LatencyHistogram()).record(System.nanoTime() - start);
+                if (aborted(response)) {
+                    aborts.computeIfAbsent(name, k -> new AtomicLong()).incrementAndGet();
+                }
+                if (response.startsWith("Booked")) {
+                    lastReservation = QueryBenchmark.reservationId(response);
+                }
+            }
+            visitLatency.record(System.nanoTime() - arrival);
+            visits.incrementAndGet();
+        } finally {
+            try {
+                user.shutdown();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Starts visits for {@code seconds} and waits for them to end.
+     *
+     * @param rate visits per second in an open loop, 0 for a closed loop
+     */
+    void run(int users, double rate, int seconds) throws InterruptedException {
+        ExecutorService threads = VirtualThreads.newExecutor("load-driver");
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        AtomicLong dropped = new AtomicLong();
+        if (rate <= 0) {
+            for (int i = 0; i < users; i++) {
+                threads.submit(() -> {
+                    while (System.nanoTime() < end) {
+                        visit(System.nanoTime());
+                    }
+                });
+            }
+        } else {
+            Semaphore free = new Semaphore(users);
+            long interval = (long) (1e9 / rate);
+            for (long arrival = start; arrival < end; arrival += interval) {
+                long wait = arrival - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                if (!free.tryAcquire()) {
+                    // every user is busy: the system is not keeping up with the rate
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                long due = arrival;
+                threads.submit(() -> {
+                    try {
+                        visit(due);
+                    } finally {
+                        free.release();
+                    }
+                });
+            }
+        }
+        threads.shutdown();
+        threads.awaitTermination(1, TimeUnit.HOURS);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%s loop, users=%d%s, %.1f s: %d visits (%.1f/s), %d failed to start, %d dropped%n",
+            rate <= 0 ? "closed" : "open", users, rate <= 0 ? "" : String.format(", rate=%.1f/s", rate), elapsed,
+            visits.get(), visits.get() / elapsed, failedVisits.get(), dropped.get());
+        System.out.printf("%-14s %9s %8s %s%n", "command", "ops/s", "aborts", "latency");
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(latencies).entrySet()) {
+            AtomicLong a = aborts.get(e.getKey());
+            System.out.printf("%-14s %9.1f %8d %s%n", e.getKey(), e.getValue().count() / elapsed,
+                a == null ? 0 : a.get(), e.getValue());
+        }
+        System.out.printf("%-14s %9.1f %8s %s%n", "visit", visits.get() / elapsed, "", visitLatency);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Integer poolSize = Integer.getInteger("pool");
+        if (poolSize != null) {
+            Grader.connections = new ConnectionPool(FlightService.DBCONFIG_FILENAME, poolSize, 30000);
+        }
+        Query admin = new Query(FlightService.DBCONFIG_FILENAME);
+        admin.openConnection();
+        admin.prepareStatements();
+        admin.clearTables();
+        admin.closeConnection();
+
+        String cases = System.getProperty("cases");
+        LoadDriver driver = new LoadDriver(
+            System.getProperty("mix", "create:1,login:1,search:10,book:3,pay:2,cancel:1"),
+            Integer.getInteger("commands", 20), cases == null ? null : scripts(cases));
+        String rate = System.getProperty("rate");
+        driver.run(Integer.getInteger("users", 1000), rate == null ? 0 : Double.parseDouble(rate),
+            Integer.getInteger("seconds", 30));
+        if (Grader.connections != null) {
+            System.out.print(Grader.connections);
+            Grader.connections.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Merges several cursors that are each sorted by total time into one globally sorted
+ * cursor of at most {@code limit} itineraries.
+ *
+ * The sources are only advanced when their current itinerary has been consumed, so no
+ * source is read further than the rows that actually make it into the result. Ties are
+ * broken by number of flights, then by fids, to keep the output deterministic.
+ */
+public class MergedCursor implements ItineraryCursor {
+    private final PriorityQueue<Head> heap;
+    private int remaining;
+    private Head current;
+
+    public MergedCursor(int limit, ItineraryCursor... sources) throws SQLException {
+        this.remaining = limit;
+        this.heap = new PriorityQueue<>(Math.max(sources.length, 1), new Comparator<Head>() {
+            @Override
+            public int compare(Head x, Head y) {
+                if (x.time != y.time) return Integer.compare(x.time, y.time);
+                if (x.fids.length != y.fids.length) return Integer.compare(x.fids.length, y.fids.length);
+                for (int i = 0; i < x.fids.length; i++) {
+                    if (x.fids[i] != y.fids[i]) return Integer.compare(x.fids[i], y.fids[i]);
+                }
+                return 0;
+            }
+        });
+        for (ItineraryCursor source : sources) {
+            Head h = new Head(source);
+            if (limit > 0 && h.advance()) {
+                heap.add(h);
+            } else {
+                source.close();
+            }
+        }
+    }
+
+    public boolean next() throws SQLException {
+        if (current != null) {
+            // the previous itinerary has been consumed, its source may move on
+            if (remaining > 0 && current.advance()) {
+                heap.add(current);
+            } else {
+                current.source.close();
+            }
+            current = null;
+        }
+        if (remaining <= 0 || heap.isEmpty()) {
+            return false;
+        }
+        remaining--;
+        current = heap.poll();
+        return true;
+    }
+
+    public int flightCount() {
+        return current.source.flightCount();
+    }
+
+    public int totalTime() throws SQLException {
+        return current.time;
+    }
+
+    public int dayOfMonth() throws SQLException {
+        return current.source.dayOfMonth();
+    }
+
+    public int fid(int leg) throws SQLException {
+        return current.fids[leg];
+    }
+
+    public void writeFlight(int leg, ResponseWriter out) throws SQLException {
+        current.source.writeFlight(leg, out);
+    }
+
+    public void close() throws SQLException {
+        if (current != null) {
+            current.source.close();
+            current = null;
+        }
+        while (!heap.isEmpty()) {
+            heap.poll().source.close();
+        }
+    }
+
+    /** A source together with the sort key of its current itinerary. */
+    private static class Head {
+        final ItineraryCursor source;
+        int time;
+        int[] fids;
+
+        Head(ItineraryCursor source) {
+            this.source = source;
+        }
+
+        boolean advance() throws SQLException {
+            if (!source.next()) {
+                return false;
+            }
+            time = source.totalTime();
+            int n = source.flightCount();
+            if (fids == null || fids.length != n) {
+                fids = new int[n];
+            }
+            for (int i = 0; i < n; i++) {
+                fids[i] = source.fid(i);
+            }
+            return true;
+        }
+    }
+}
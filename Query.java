@@ -1,9 +1,10 @@
 import java.io.FileInputStream;
+import java.io.PrintStream;
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
 
 /**
  * Runs queries against a back-end database
@@ -20,51 +21,120 @@ public class Query {
     // DB Connection
     private Connection conn;
 
+    // Shared pool of back ends; when set, this Query is a lightweight session that borrows
+    // a pooled Query (and its connection) for every transaction instead of owning a connection
+    private ConnectionPool pool;
+
     // Logged In User
     private String username; // customer username is unique
 
-    // Canned queries
+    // In-memory route index, null when searches go to the database
+    private FlightIndex flightIndex;
 
-    private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
-    private PreparedStatement checkFlightCapacityStatement;
-	
-	private static final String CHECK_RESERVATION_ROW_NUMBER = "SELECT COUNT(*) AS row_number FROM Reservation";
-    private PreparedStatement checkReservationRowStatement;
+    // How many one-stop itineraries per (origin, destination, day) the Connections table holds,
+    // 0 when searches do not read it
+    private int connectionsDepth;
+
+    // Runs one-stop queries on separate connections, null when searches run sequentially
+    private SearchFanOut fanOut;
+
+    // The statement of the last one-stop query, cancelled when a fan-out search gives up on it
+    private volatile Statement twoHopStatement;
+
+    // Search results shared by all sessions in this JVM, null when disabled
+    private SearchCache searchCache;
+
+    // False once the running search had to give up on part of its results
+    private boolean searchComplete;
+
+    // Timings of transactions and statements shared by all sessions in this JVM, null when disabled
+    private QueryStats stats;
+    private final QueryStats.Counters counters = new QueryStats.Counters();
+
+    // Rows a search query fetches per round trip, at most; searches asking for more read a server cursor
+    private int searchFetchSize;
+
+    // How long a multi-stop search may take before it returns what it found so far
+    private int searchTimeoutMillis;
+
+    // Age after which multi-stop searches reload their copy of the schedule, when searches do not use the index
+    private long multiHopRefreshMillis;
+
+    // Rank direct and one-stop itineraries together by total time instead of listing direct ones first
+    private boolean rankByTotalTime;
+
+    // Canned queries, prepared on first use
+    private StatementCache statements;
+
+    // Next reservation IDs, allocated from the IdBlocks table
+    private IdAllocator reservationIds;
+
+    // How many times a transaction that lost a deadlock is run again
+    private int maxRetries;
+
+    // Set by the running transaction: the flights whose seats it changed and the reservation ID it took, 0 for none
+    private int changedFID1;
+    private int changedFID2;
+    private int takenRid;
+
+    // Book, pay and cancel call the stored procedures of createTables.sql, one round trip each
+    private boolean useProcedures;
+
+    // Flights rows shared by all sessions in this JVM, null when disabled
+    private FlightCache flightCache;
+
+    // Holder filled by lookupFlight
+    private final Flight flight = new Flight();
 
     // transactions
+    // each transaction type picks its isolation level; searches and reservation listings run in
+    // autocommit at read committed, which reads row versions once READ_COMMITTED_SNAPSHOT is on
     private static final String BEGIN_TRANSACTION_SQL = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
-    private PreparedStatement beginTransactionStatement;
 
-    private static final String COMMIT_SQL = "COMMIT TRANSACTION";
-    private PreparedStatement commitTransactionStatement;
+    // for transactions that read every row they change by key, with UPDLOCK: no range locks
+    private static final String BEGIN_REPEATABLE_READ_SQL = "SET TRANSACTION ISOLATION LEVEL REPEATABLE READ; BEGIN TRANSACTION;";
+
+    // the level stays set on the connection, so the reads that follow get read committed back
+    private static final String READ_COMMITTED_SQL = "SET TRANSACTION ISOLATION LEVEL READ COMMITTED;";
 
-    private static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION";
-    private PreparedStatement rollbackTransactionStatement;
+    private static final String COMMIT_SQL = "COMMIT TRANSACTION; " + READ_COMMITTED_SQL;
+
+    private static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION; " + READ_COMMITTED_SQL;
 
 	
 	
 	// EXTRA
-	private ArrayList<ArrayList<Integer>> itineraries;
+	private ItineraryBuffer itineraries;
+	
+	// text of the search or reservation listing being printed, reused by every transaction
+	private final ResponseWriter response = new ResponseWriter();
+	
+	// where a streaming search writes each itinerary as soon as it is read, null otherwise
+	private PrintStream stream;
 	
 	private static final String LOGIN_SQL = "SELECT * FROM Users WHERE username = ? AND password = ?";
-	private PreparedStatement userLoginStatement;
 	
 	private static final String CREATE_USER_SQL = "INSERT INTO Users VALUES (?, ?, ?)";
-	private PreparedStatement createUserStatement;
 	
-	private static final String SEARCH_ONE_HOP_SQL = "SELECT TOP (?) fid, day_of_month, carrier_id, flight_num, " 
+	// SQLServerResultSet.TYPE_SS_SERVER_CURSOR_FORWARD_ONLY of the Microsoft driver: a read-only,
+	// forward-only server cursor, fetched setFetchSize rows per round trip
+	private static final int SERVER_CURSOR_FORWARD_ONLY = 2004;
+	
+	// the search and reservation lookups are package-private so that IndexAdvisor can replay them
+	static final String SEARCH_ONE_HOP_SQL = "SELECT TOP (?) fid, day_of_month, carrier_id, flight_num, " 
 		+ "origin_city, dest_city, actual_time AS total_time, capacity, price FROM Flights " 
 		+ "WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? "
 		+ "AND actual_time IS NOT NULL " 
 		+ "ORDER BY actual_time ASC";
-	private PreparedStatement searchOneHopStatement;
 	
-	private static final String SEARCH_TWO_HOP_SQL = "SELECT TOP (?) "
-		+ "F.fid AS fid1,F.day_of_month AS day_of_month1,F.carrier_id AS carrier_id1, F.capacity AS capacity1, F.price AS price1,"
+	// first leg F, second leg S
+	private static final String TWO_HOP_COLUMNS = "F.fid AS fid1,F.day_of_month AS day_of_month1,F.carrier_id AS carrier_id1, F.capacity AS capacity1, F.price AS price1,"
 		+ "F.flight_num AS flight_num1,F.origin_city AS origin_city1,F.dest_city AS dest_city1,F.actual_time AS actual_time1,"
 		+ "S.fid AS fid2,S.day_of_month AS day_of_month2,S.carrier_id AS carrier_id2, S.capacity AS capacity2, S.price AS price2,"
 		+ "S.flight_num AS flight_num2,S.origin_city AS origin_city2,S.dest_city AS dest_city2,S.actual_time AS actual_time2,"
-		+ "(F.actual_time + S.actual_time) AS total_time "
+		+ "(F.actual_time + S.actual_time) AS total_time ";
+	
+	static final String SEARCH_TWO_HOP_SQL = "SELECT TOP (?) " + TWO_HOP_COLUMNS
 		+ "FROM Flights AS F "
 		+ "INNER JOIN Flights AS S "
 		+ "ON S.origin_city = F.dest_city "
@@ -75,67 +145,85 @@ public class Query {
 		+ "WHERE F.actual_time IS NOT NULL "
 		+ "AND S.actual_time IS NOT NULL "
 		+ "ORDER BY (F.actual_time + S.actual_time) ASC";
-	private PreparedStatement searchTwoHopStatement;
 	
-	private static final String CHECK_BOOKING_SQL = "SELECT * FROM Booking WHERE fid = ?";
-	private PreparedStatement checkBookingStatement;
+	// precomputed best one-stop itineraries, see BuildConnections in createTables.sql
+	private static final String SEARCH_CONNECTIONS_SQL = "SELECT TOP (?) " + TWO_HOP_COLUMNS
+		+ "FROM Connections AS C "
+		+ "INNER JOIN Flights AS F ON F.fid = C.fid1 "
+		+ "INNER JOIN Flights AS S ON S.fid = C.fid2 "
+		+ "WHERE C.origin_city = ? AND C.dest_city = ? AND C.day_of_month = ? "
+		+ "ORDER BY C.pos ASC";
+	
+	private static final String CONNECTIONS_DEPTH_SQL = "SELECT depth FROM ConnectionsDepth";
 	
-	private static final String NEW_BOOKING_SQL = "INSERT INTO Booking VALUES (?, 1)";
-	private PreparedStatement newBookingStatement;
+	// most flights in one itinerary
+	static final int MAX_FLIGHTS = 3;
 	
-	private static final String UPDATE_BOOKING_SQL = "UPDATE Booking SET count = ? WHERE fid = ?";
-	private PreparedStatement updateBookingStatement;
+	// most flights in one reservation; longer itineraries are listed without an ID to book
+	static final int MAX_BOOKED_FLIGHTS = 2;
+	
+	// takes a seat only while count < capacity; 1 row affected on success, 0 if the flight is full
+	private static final String RESERVE_SEAT_SQL = "MERGE Booking WITH (HOLDLOCK) AS B "
+		+ "USING (SELECT fid, capacity FROM Flights WHERE fid = ?) AS F ON B.fid = F.fid "
+		+ "WHEN MATCHED AND B.count < F.capacity THEN UPDATE SET count = B.count + 1 "
+		+ "WHEN NOT MATCHED AND F.capacity > 0 THEN INSERT (fid, count) VALUES (F.fid, 1);";
+	
+	// the whole transaction in one call each, see createTables.sql; every one returns one status row
+	private static final String BOOK_PROCEDURE_SQL = "EXEC BookReservation ?, ?, ?, ?, ?";
+	
+	private static final String PAY_PROCEDURE_SQL = "EXEC PayReservation ?, ?";
+	
+	private static final String CANCEL_PROCEDURE_SQL = "EXEC CancelReservation ?, ?";
+	
+	private static final String RELEASE_SEAT_SQL = "UPDATE Booking SET count = count - 1 WHERE fid = ? AND count > 0";
 	
 	private static final String ONE_RESERVATION_SQL = "INSERT INTO Reservation VALUES (?, ?, ?, NULL, ?, ?)";
-	private PreparedStatement oneReservationStatement;
 	
 	private static final String TWO_RESERVATION_SQL = "INSERT INTO Reservation VALUES (?, ?, ?, ?, ?, ?)";
-	private PreparedStatement twoReservationStatement;
 	
 	private static final String UPDATE_RESERVATION_SQL = "UPDATE Reservation SET fid2 = ? WHERE rid = ?";
-	private PreparedStatement updateReservationStatement;
 	
-	private static final String SEARCH_RESERVATION_SQL = "SELECT * FROM Reservation WHERE username = ?";
-	private PreparedStatement searchReservationStatement;
+	// a reservation with both of its flights, columns of the second flight are NULL for direct flights
+	private static final String RESERVATION_COLUMNS = "R.rid, R.paid, "
+		+ "F1.fid AS fid1, F1.day_of_month AS day_of_month1, F1.carrier_id AS carrier_id1, F1.flight_num AS flight_num1, "
+		+ "F1.origin_city AS origin_city1, F1.dest_city AS dest_city1, F1.actual_time AS actual_time1, "
+		+ "F1.capacity AS capacity1, F1.price AS price1, "
+		+ "F2.fid AS fid2, F2.day_of_month AS day_of_month2, F2.carrier_id AS carrier_id2, F2.flight_num AS flight_num2, "
+		+ "F2.origin_city AS origin_city2, F2.dest_city AS dest_city2, F2.actual_time AS actual_time2, "
+		+ "F2.capacity AS capacity2, F2.price AS price2 "
+		+ "FROM Reservation AS R "
+		+ "INNER JOIN Flights AS F1 ON F1.fid = R.fid1 "
+		+ "LEFT OUTER JOIN Flights AS F2 ON F2.fid = R.fid2 ";
+	
+	static final String SEARCH_RESERVATION_SQL = "SELECT " + RESERVATION_COLUMNS
+		+ "WHERE R.username = ? ORDER BY R.rid ASC";
 	
-	private static final String SEARCH_UNPAID_SQL = "SELECT * FROM Reservation WHERE username = ? AND rid = ? AND paid = 'false'";
-	private PreparedStatement unpaidReservationStatement;
+	private static final String SEARCH_RESERVATION_PAGE_SQL = "SELECT TOP (?) " + RESERVATION_COLUMNS
+		+ "WHERE R.username = ? AND R.rid > ? ORDER BY R.rid ASC";
+	
+	static final String SEARCH_UNPAID_SQL = "SELECT * FROM Reservation WITH (UPDLOCK, ROWLOCK) "
+		+ "WHERE username = ? AND rid = ? AND paid = 'false'";
 	
 	private static final String SEARCH_UNPAID_SQL_2 = "SELECT fid2 FROM Reservation WHERE username = ? AND rid = ? AND paid = 'false'";
-	private PreparedStatement unpaidReservationStatement2;
 	
 	private static final String UPDATE_UNPAID_SQL = "UPDATE Reservation SET paid = ? WHERE rid = ?";
-	private PreparedStatement updatePaidStatement;
 	
 	private static final String UPDATE_BALANCE_SQL = "UPDATE Users SET balance = ? WHERE username = ?";
-	private PreparedStatement updateBalanceStatement;
-	
-	private static final String FLIGHT_PRICE_SQL = "SELECT price FROM Flights WHERE FID = ?";
-	private PreparedStatement checkPriceStatement;
 	
 	private static final String SEARCH_FLIGHT_SQL = "SELECT * FROM Flights WHERE fid = ?";
-	private PreparedStatement searchFlightStatement;
-	
-	private static final String SEARCH_BALANCE_SQL = "SELECT * FROM Users WHERE username = ?";
-	private PreparedStatement checkBalanceStatement;
 	
-	private static final String SECOND_FID_SQL = "SELECT fid2 FROM Reservation WHERE username = ? AND rid = ?";
-	private PreparedStatement searchSecondFidStatement;
+	private static final String SEARCH_BALANCE_SQL = "SELECT * FROM Users WITH (UPDLOCK, ROWLOCK) WHERE username = ?";
 	
-	private static final String FIRST_FID_SQL = "SELECT fid1 FROM Reservation WHERE username = ? AND rid = ?";
-	private PreparedStatement searchFirstFidStatement;
+	static final String RESERVATION_FLIGHTS_SQL = "SELECT fid1, fid2 FROM Reservation WITH (UPDLOCK, ROWLOCK) "
+		+ "WHERE username = ? AND rid = ?";
 
 	private static final String CANCEL_RESERVATION_SQL = "DELETE FROM Reservation WHERE username = ? AND rid = ?";
-	private PreparedStatement cancelReservationStatement;
 	
 	private static final String DELETE_RESERVATION_SQL = "DELETE FROM Reservation";
-	private PreparedStatement deleteReservationStatement;
 	
 	private static final String DELETE_BOOKING_SQL = "DELETE FROM Booking";
-	private PreparedStatement deleteBookingStatement;
 	
 	private static final String DELETE_USER_SQL = "DELETE FROM Users";
-	private PreparedStatement deleteUserStatement;
 
 	
     class Flight {
@@ -161,11 +249,23 @@ public class Query {
         this.configFilename = configFilename;
     }
 
+    /**
+     * Creates a session that runs its transactions on connections borrowed from {@code pool}.
+     * The session keeps its own logged in user and search results.
+     */
+    public Query(String configFilename, ConnectionPool pool) {
+        this.configFilename = configFilename;
+        this.pool = pool;
+    }
+
     /* 
 		Connection code to SQL Azure.  
 	*/
     public void openConnection() throws Exception {
         configProps.load(new FileInputStream(configFilename));
+        if (pool != null) {
+            return; // connections are opened by the pool
+        }
 
         jSQLDriver = configProps.getProperty("flightservice.jdbc_driver");
         jSQLUrl = configProps.getProperty("flightservice.url");
@@ -186,12 +286,59 @@ public class Query {
            conn.setTransactionIsolation(...)
            See Connection class' JavaDoc for details.
         */
+
+        stats = QueryStats.shared(configProps);
+
+        rankByTotalTime = "total_time".equals(configProps.getProperty("flightservice.search_ranking", "direct_first").trim());
+
+        /* optional in-memory route index, built once and shared by all sessions in this JVM */
+        if (Boolean.parseBoolean(configProps.getProperty("flightservice.search_index", "false"))) {
+            flightIndex = FlightIndex.shared(conn);
+        }
+
+        searchFetchSize = Integer.parseInt(configProps.getProperty("flightservice.search_fetch_size", "50").trim());
+        searchTimeoutMillis = Integer.parseInt(configProps.getProperty("flightservice.search_timeout_ms", "200").trim());
+        multiHopRefreshMillis = Long.parseLong(configProps.getProperty("flightservice.search_multi_hop_refresh_ms", "60000").trim());
+
+        /* optional parallel searches, the one-stop query runs on a second connection */
+        if (Boolean.parseBoolean(configProps.getProperty("flightservice.search_parallel", "false"))) {
+            fanOut = SearchFanOut.shared(configFilename, configProps);
+        }
+
+        /* optional precomputed one-stop itineraries, maintained by the database */
+        if (Boolean.parseBoolean(configProps.getProperty("flightservice.search_connections", "false"))) {
+            connectionsDepth = readConnectionsDepth();
+        }
+
+        /* optional cache of search results */
+        searchCache = SearchCache.shared(configProps);
+
+        /* optional read-through cache of Flights rows, warmed up once with the most booked flights */
+        flightCache = FlightCache.shared(configProps, conn);
     }
 
     public void closeConnection() throws Exception {
+        if (pool != null) {
+            return; // the pool owns the connections
+        }
+        if (statements != null) {
+            statements.close();
+        }
         conn.close();
     }
 
+    /**
+     * @param timeoutSeconds how long to wait for the server to answer
+     * @return whether the connection still works, e.g. was not broken by a network drop
+     */
+    boolean isConnectionValid(int timeoutSeconds) {
+        try {
+            return conn != null && conn.isValid(timeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
     /**
      * Clear the data in any custom tables created. Do not drop any tables and do not
      * clear the flights table. You should clear any tables you use to store reservations
@@ -199,63 +346,39 @@ public class Query {
      */
     public void clearTables() {
         // your code here
+		if (pool != null){
+			pooled(null, q -> { q.clearTables(); return null; });
+			return;
+		}
 		try {
+			PreparedStatement deleteReservationStatement = statement(DELETE_RESERVATION_SQL);
 			deleteReservationStatement.executeUpdate();
+			PreparedStatement deleteBookingStatement = statement(DELETE_BOOKING_SQL);
 			deleteBookingStatement.executeUpdate();
+			PreparedStatement deleteUserStatement = statement(DELETE_USER_SQL);
 			deleteUserStatement.executeUpdate();
+			reservationIds.reset(statements);
 		} catch (SQLException e){
 			e.printStackTrace();
 		}
     }
 
     /**
-     * prepare all the SQL statements in this method.
-     * "preparing" a statement is almost like compiling it.
-     * Note that the parameters (with ?) are still not filled in
+     * Sets up the statement cache for this connection. Statements are no longer prepared
+     * up front: each one is prepared the first time a transaction needs it, and then
+     * reused for as long as it stays in the cache.
      */
     public void prepareStatements() throws Exception {
-        beginTransactionStatement = conn.prepareStatement(BEGIN_TRANSACTION_SQL);
-        commitTransactionStatement = conn.prepareStatement(COMMIT_SQL);
-        rollbackTransactionStatement = conn.prepareStatement(ROLLBACK_SQL);
-
-		deleteReservationStatement = conn.prepareStatement(DELETE_RESERVATION_SQL);
-		deleteBookingStatement = conn.prepareStatement(DELETE_BOOKING_SQL);
-		deleteUserStatement = conn.prepareStatement(DELETE_USER_SQL);
-		
-        checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
-		checkReservationRowStatement = conn.prepareStatement(CHECK_RESERVATION_ROW_NUMBER);
-
-        /* add here more prepare statements for all the other queries you need */
-        /* . . . . . . */
-		userLoginStatement = conn.prepareStatement(LOGIN_SQL);
-		
-		createUserStatement = conn.prepareStatement(CREATE_USER_SQL);
-		
-		searchOneHopStatement = conn.prepareStatement(SEARCH_ONE_HOP_SQL);
-		searchTwoHopStatement = conn.prepareStatement(SEARCH_TWO_HOP_SQL);
-		
-		checkBookingStatement = conn.prepareStatement(CHECK_BOOKING_SQL);
-		newBookingStatement = conn.prepareStatement(NEW_BOOKING_SQL);
-		updateBookingStatement = conn.prepareStatement(UPDATE_BOOKING_SQL);
-		
-		oneReservationStatement = conn.prepareStatement(ONE_RESERVATION_SQL);
-		twoReservationStatement = conn.prepareStatement(TWO_RESERVATION_SQL);
-		
-		searchReservationStatement = conn.prepareStatement(SEARCH_RESERVATION_SQL);
-		unpaidReservationStatement = conn.prepareStatement(SEARCH_UNPAID_SQL);
-		
-		searchFlightStatement = conn.prepareStatement(SEARCH_FLIGHT_SQL);
-		
-		updatePaidStatement = conn.prepareStatement(UPDATE_UNPAID_SQL);
-		checkPriceStatement = conn.prepareStatement(FLIGHT_PRICE_SQL);
-		updateBalanceStatement = conn.prepareStatement(UPDATE_BALANCE_SQL);
-		checkBalanceStatement = conn.prepareStatement(SEARCH_BALANCE_SQL);
-		unpaidReservationStatement2 = conn.prepareStatement(SEARCH_UNPAID_SQL_2);
-		
-		searchFirstFidStatement = conn.prepareStatement(FIRST_FID_SQL);
-		searchSecondFidStatement = conn.prepareStatement(SECOND_FID_SQL);
-		cancelReservationStatement = conn.prepareStatement(CANCEL_RESERVATION_SQL);
-		itineraries = new ArrayList<ArrayList<Integer>>();
+		itineraries = new ItineraryBuffer(MAX_BOOKED_FLIGHTS);
+		if (pool != null){
+			return; // statements live on the pooled connections
+		}
+		int capacity = Integer.parseInt(configProps.getProperty("flightservice.statement_cache_size", "64").trim());
+		statements = new StatementCache(conn, capacity, stats, counters);
+		int idBlockSize = Integer.parseInt(configProps.getProperty("flightservice.reservation_id_block_size", "1").trim());
+		reservationIds = new IdAllocator("reservation", idBlockSize);
+		maxRetries = Integer.parseInt(configProps.getProperty("flightservice.max_retries", "3").trim());
+		useProcedures = Boolean.parseBoolean(configProps.getProperty("flightservice.use_procedures", "false").trim());
     }
 
     /**
@@ -270,10 +393,21 @@ public class Query {
      * Otherwise, return "Logged in as [username]\n".
      */
     public String transaction_login(String newUser, String password) {
+		if (pool != null){
+			return pooled("Login failed\n", q -> q.transaction_login(newUser, password));
+		}
+		if (stats != null){
+			return stats.record("login", counters, () -> login(newUser, password));
+		}
+		return login(newUser, password);
+    }
+	
+	private String login(String newUser, String password) {
 		try {			
 			if (username != null){
 				return "User already logged in\n";
 			}
+			PreparedStatement userLoginStatement = statement(LOGIN_SQL);
 			userLoginStatement.clearParameters();
 			userLoginStatement.setString(1, newUser);
 			userLoginStatement.setString(2, password);
@@ -299,10 +433,21 @@ public class Query {
      * @return either "Created user {@code username}\n" or "Failed to create user\n" if failed.
      */
     public String transaction_createCustomer(String username, String password, int initAmount) {
+		if (pool != null){
+			return pooled("Failed to create user\n", q -> q.transaction_createCustomer(username, password, initAmount));
+		}
+		if (stats != null){
+			return stats.record("create", counters, () -> createCustomer(username, password, initAmount));
+		}
+		return createCustomer(username, password, initAmount);
+    }
+	
+	private String createCustomer(String username, String password, int initAmount) {
 		try {
 			if (initAmount < 0) {
 				return "Failed to create user\n";
 			}
+			PreparedStatement createUserStatement = statement(CREATE_USER_SQL);
 			createUserStatement.clearParameters();
 			createUserStatement.setString(1, username);
 			createUserStatement.setString(2, password);
@@ -348,222 +493,390 @@ public class Query {
      */
     public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
         int numberOfItineraries) {
+		if (pool != null){
+			return pooled("Failed to search\n",
+				q -> q.transaction_search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries));
+		}
+		if (stats != null){
+			return stats.record("search", counters,
+				() -> cachedSearch(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries));
+		}
+		return cachedSearch(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+    }
+	
+	/**
+	 * Same as {@link #transaction_search(String, String, boolean, int, int)}, except that the
+	 * output is printed to {@code out} instead of returned, one itinerary at a time as the rows
+	 * arrive. The first itinerary is flushed as soon as it is read, the rest when the search
+	 * is done. If the search fails half way, "Failed to search\n" follows the itineraries
+	 * already printed.
+	 */
+	public void transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+		int numberOfItineraries, PrintStream out) {
+		String rest;
+		if (pool != null){
+			rest = pooled("Failed to search\n", q -> {
+				q.transaction_search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, out);
+				return "";
+			});
+		} else {
+			stream = out;
+			try {
+				rest = stats == null ? cachedSearch(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries)
+					: stats.record("search streamed", counters,
+						() -> cachedSearch(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries));
+			} finally {
+				stream = null;
+			}
+		}
+		out.print(rest);
+		out.flush();
+	}
+	
+	/**
+	 * Serves the search from the search cache if it is there. Streamed searches are not
+	 * cached, their output is already gone.
+	 */
+	private String cachedSearch(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+		int numberOfItineraries) {
+		if (searchCache == null){
+			return search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+		}
 		
+		String key = SearchCache.key(originCity, destinationCity, dayOfMonth, directFlight, numberOfItineraries);
+		SearchCache.Entry hit = searchCache.get(key);
+		if (hit != null){
+			itineraries.copyFrom(hit.itineraries);
+			return hit.output;
+		}
+		long stamp = searchCache.stamp();
+		String result = search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+		if (searchComplete && stream == null && !result.equals("Failed to search\n")){
+			searchCache.put(key, result, itineraries, stamp);
+		}
+		return result;
+	}
+	
+	private String search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+		int numberOfItineraries) {
+		searchComplete = true;
 		try {
+			response.reset();
+			itineraries.clear();
 			
-			if (directFlight){
-				StringBuffer sb = new StringBuffer();
-				itineraries.clear();
+			if (fanOut != null && !directFlight && flightIndex == null){
+				return searchInParallel(originCity, destinationCity, dayOfMonth, numberOfItineraries);
+			}
 			
-				//one hop
-				searchOneHopStatement.clearParameters();
-				searchOneHopStatement.setInt(1, numberOfItineraries);
-				searchOneHopStatement.setString(2, originCity);
-				searchOneHopStatement.setString(3, destinationCity);
-				searchOneHopStatement.setInt(4, dayOfMonth);
-				ResultSet oneHopResults = searchOneHopStatement.executeQuery();
-				
-				int row_id = 0;
-				int flight_count = 0;
-				while (oneHopResults.next() && flight_count < numberOfItineraries){
-					row_id++;
-					flight_count++;
-					sb.append("Itinerary "+(row_id-1)+": 1 flight(s), "+ oneHopResults.getInt("total_time") +" minutes\n");				
-					String s = "ID: " + oneHopResults.getInt("fid") + " Day: " + oneHopResults.getInt("day_of_month") +
-						" Carrier: " + oneHopResults.getString("carrier_id") + " Number: " + oneHopResults.getString("flight_num") +
-						" Origin: " + oneHopResults.getString("origin_city") + " Dest: " + oneHopResults.getString("dest_city") + 
-						" Duration: " + oneHopResults.getInt("total_time") + " Capacity: " + oneHopResults.getInt("capacity") +
-						" Price: " + oneHopResults.getInt("price") + "\n";
-					sb.append(s);
-					
-					itineraries.add(new ArrayList<Integer>());
-					int index = itineraries.size()-1;
-					itineraries.get(index).add(oneHopResults.getInt("total_time"));
-					itineraries.get(index).add(oneHopResults.getInt("day_of_month"));
-					itineraries.get(index).add(oneHopResults.getInt("fid"));
-					
-				}
-				//oneHopResults.close();
-				
-				//two hop
-				//if (!directFlight && flight_count < numberOfItineraries){
-				if (flight_count < numberOfItineraries){
-					searchTwoHopStatement.clearParameters();
-					searchTwoHopStatement.setInt(1, numberOfItineraries - flight_count);
-					searchTwoHopStatement.setString(2, originCity);
-					searchTwoHopStatement.setString(3, destinationCity);
-					searchTwoHopStatement.setInt(4, dayOfMonth);
-					ResultSet twoHopResults = searchTwoHopStatement.executeQuery();
-					
-					while(twoHopResults.next() && flight_count < numberOfItineraries){
-						row_id++;
-						flight_count++;
-						
-						sb.append("Itinerary "+(row_id-1)+": 2 flight(s), "+ twoHopResults.getInt("total_time") +" minutes\n");	
-						String s1 = "ID: " + twoHopResults.getInt("fid1") + " Day: " + twoHopResults.getInt("day_of_month1") +
-							" Carrier: " + twoHopResults.getString("carrier_id1") + " Number: " + twoHopResults.getString("flight_num1") +
-							" Origin: " + twoHopResults.getString("origin_city1") + " Dest: " + twoHopResults.getString("dest_city1") + 
-							" Duration: " + twoHopResults.getInt("actual_time1") + " Capacity: " + twoHopResults.getInt("capacity1") +
-							" Price: " + twoHopResults.getInt("price1") + "\n";
-						sb.append(s1);
-						
-						String s2 = "ID: " + twoHopResults.getInt("fid2") + " Day: " + twoHopResults.getInt("day_of_month2") +
-							" Carrier: " + twoHopResults.getString("carrier_id2") + " Number: " + twoHopResults.getString("flight_num2") +
-							" Origin: " + twoHopResults.getString("origin_city2") + " Dest: " + twoHopResults.getString("dest_city2") + 
-							" Duration: " + twoHopResults.getInt("actual_time2") + " Capacity: " + twoHopResults.getInt("capacity2") +
-							" Price: " + twoHopResults.getInt("price2") + "\n";
-						sb.append(s2);
-						
-						itineraries.add(new ArrayList<Integer>());
-						int index = itineraries.size()-1;
-						itineraries.get(index).add(twoHopResults.getInt("total_time"));
-						itineraries.get(index).add(twoHopResults.getInt("day_of_month1"));
-						itineraries.get(index).add(twoHopResults.getInt("fid1"));
-						itineraries.get(index).add(twoHopResults.getInt("fid2"));
-						//itineraries.get(index).add(twoHopResults.getInt("day_of_month2"));
-					}
-					//twoHopResults.close();
-				} 
-				return sb.toString();
+			int flight_count;
+			if (!directFlight && rankByTotalTime){
+				//one hop and two hop ranked together, neither side is read past the top k
+				ItineraryCursor merged = new MergedCursor(numberOfItineraries,
+					openOneHop(originCity, destinationCity, dayOfMonth, numberOfItineraries),
+					openTwoHop(originCity, destinationCity, dayOfMonth, numberOfItineraries));
+				flight_count = appendItineraries(merged, numberOfItineraries);
+				return flight_count == 0 ? "No flights match your selection\n" : response.toString();
 			}
-			return null;
-			/*
-			else {
-				StringBuffer sb = new StringBuffer();
-				itineraries.clear();
 			
-				//one hop
-				searchOneHopStatement.clearParameters();
-				searchOneHopStatement.setInt(1, numberOfItineraries);
-				searchOneHopStatement.setString(2, originCity);
-				searchOneHopStatement.setString(3, destinationCity);
-				searchOneHopStatement.setInt(4, dayOfMonth);
-				ResultSet oneHopResults = searchOneHopStatement.executeQuery();
-				
-				int row_id = 0;
-				int flight_count = 0;
-				while (oneHopResults.next() && flight_count < numberOfItineraries){
-					row_id++;
-					flight_count++;
-
-					
-					itineraries.add(new ArrayList<Integer>());
-					int index = itineraries.size()-1;
-					itineraries.get(index).add(oneHopResults.getInt("total_time"));
-					itineraries.get(index).add(oneHopResults.getInt("day_of_month"));
-					itineraries.get(index).add(oneHopResults.getInt("fid"));
-					
-				}
-				
-				//two hop
-				row_id = 0;
-				flight_count = 0;
-				searchTwoHopStatement.clearParameters();
-				searchTwoHopStatement.setInt(1, numberOfItineraries);
-				searchTwoHopStatement.setString(2, originCity);
-				searchTwoHopStatement.setString(3, destinationCity);
-				searchTwoHopStatement.setInt(4, dayOfMonth);
-				ResultSet twoHopResults = searchTwoHopStatement.executeQuery();
-				
-				while(twoHopResults.next() && flight_count < numberOfItineraries){
-					row_id++;
-					flight_count++;
-
-					itineraries.add(new ArrayList<Integer>());
-					int index = itineraries.size()-1;
-					itineraries.get(index).add(twoHopResults.getInt("total_time"));
-					itineraries.get(index).add(twoHopResults.getInt("day_of_month1"));
-					itineraries.get(index).add(twoHopResults.getInt("fid1"));
-					itineraries.get(index).add(twoHopResults.getInt("fid2"));
-				}
-				
-				//sort the itineraries based on total_time
-				
-				
-				Collections.sort(itineraries, new Comparator<ArrayList<Integer>>() {
-					@Override
-					public int compare(ArrayList<Integer> lhs, ArrayList<Integer> rhs) {
-						// -1 - less than, 1 - greater than, 0 - equal, all inversed for descending
-						return lhs.get(0) > rhs.get(0) ? -1 : (lhs.get(0) < rhs.get(0)) ? 1 : 0;
-					}
-				});
-				
-				
-				
-				Comparator<ArrayList<Integer>> comp = (ArrayList<Integer> a, ArrayList<Integer> b) -> {
-					return (b.get(0)).compareTo((a.get(0)));
-				};
-
-				Collections.sort(itineraries, comp);
-				
-				
-				
-				
-				//iterate and append into string buffer
-				for (int i = 0; i < itineraries.size(); i++){
-					itinerary = itineraries.get(i);
-					if (itinerary.size() == 3){
-						// one hop flight
-						int time = itinerary.get(0);
-						int date = itinerary.get(1);
-						int fid1 = itinerary.get(2);
-						
-						sb.append("Itinerary "+ (i+1) +": 1 flight(s), "+ time +"minutes\n");
-						
-						searchFlightStatement.clearParameters();
-						searchFlightStatement.setInt(1, fid1);
-						ResultSet f1 = searchFlightStatement.executeQuery();
-						f1.next();
-						String s1 = "ID: " + f1.getInt("fid") + " Day: " + f1.getInt("day_of_month") +
-							" Carrier: " + f1.getString("carrier_id") + " Number: " + f1.getString("flight_num") +
-							" Origin: " + f1.getString("origin_city") + " Dest: " + f1.getString("dest_city") + 
-							" Duration: " + f1.getInt("actual_time") + " Capacity: " + f1.getInt("capacity") +
-							" Price: " + f1.getInt("price") + "\n";
-						sb.append(s1);
-						f1.close();
-						
-					} else {
-						// two hop flight
-						int time = itinerary.get(0);
-						int date = itinerary.get(1);
-						int fid1 = itinerary.get(2);
-						int fid2 = itinerary.get(3);
-						
-						sb.append("Itinerary "+ (i+1) +": 2 flight(s), "+ time +"minutes\n");
-						
-						searchFlightStatement.clearParameters();
-						searchFlightStatement.setInt(1, fid1);
-						ResultSet f1 = searchFlightStatement.executeQuery();
-						f1.next();
-						String s1 = "ID: " + f1.getInt("fid") + " Day: " + f1.getInt("day_of_month") +
-							" Carrier: " + f1.getString("carrier_id") + " Number: " + f1.getString("flight_num") +
-							" Origin: " + f1.getString("origin_city") + " Dest: " + f1.getString("dest_city") + 
-							" Duration: " + f1.getInt("actual_time") + " Capacity: " + f1.getInt("capacity") +
-							" Price: " + f1.getInt("price") + "\n";
-						sb.append(s1);
-						f1.close();
-
-						searchFlightStatement.setInt(1, fid2);
-						ResultSet f2 = searchFlightStatement.executeQuery();
-						f2.next();
-						
-						String s2 = "ID: " + f2.getInt("fid") + " Day: " + f2.getInt("day_of_month") +
-							" Carrier: " + f2.getString("carrier_id") + " Number: " + f2.getString("flight_num") +
-							" Origin: " + f2.getString("origin_city") + " Dest: " + f2.getString("dest_city") + 
-							" Duration: " + f2.getInt("actual_time") + " Capacity: " + f2.getInt("capacity") +
-							" Price: " + f2.getInt("price") + "\n";
-						sb.append(s2);
-						f2.close();
-						
-					}
-				}
-			return sb.toString();
-		*/
+			//one hop
+			ItineraryCursor oneHop = openOneHop(originCity, destinationCity, dayOfMonth, numberOfItineraries);
+			flight_count = appendItineraries(oneHop, numberOfItineraries);
+			
+			//two hop, only to fill up the remaining slots
+			if (!directFlight && flight_count < numberOfItineraries){
+				ItineraryCursor twoHop = openTwoHop(originCity, destinationCity, dayOfMonth, numberOfItineraries - flight_count);
+				flight_count += appendItineraries(twoHop, numberOfItineraries - flight_count);
+			}
+			
+			if (flight_count == 0){
+				return "No flights match your selection\n";
+			}
+			return response.toString();
 		} catch (SQLException e){
 			e.printStackTrace();
 			return "Failed to search\n";
 		}
+	}
+	
+	/**
+	 * Runs the one-stop query on a connection of the fan-out pool while the direct query runs
+	 * on this one, then prints both like the sequential search. If the one-stop query is not
+	 * done within the fan-out timeout, only direct flights are printed.
+	 */
+	private String searchInParallel(String originCity, String destinationCity, int dayOfMonth, int numberOfItineraries)
+		throws SQLException {
+		long start = System.nanoTime();
+		Future<ItineraryCursor> twoHop = fanOut.twoHop(originCity, destinationCity, dayOfMonth, numberOfItineraries);
+		ItineraryCursor oneHop;
+		try {
+			oneHop = openOneHop(originCity, destinationCity, dayOfMonth, numberOfItineraries);
+		} catch (SQLException e){
+			twoHop.cancel(true);
+			throw e;
+		}
+		
+		int flight_count;
+		if (rankByTotalTime){
+			ItineraryCursor merged = new MergedCursor(numberOfItineraries, oneHop, awaitTwoHop(twoHop, start));
+			flight_count = appendItineraries(merged, numberOfItineraries);
+		} else {
+			flight_count = appendItineraries(oneHop, numberOfItineraries);
+			if (flight_count < numberOfItineraries){
+				flight_count += appendItineraries(awaitTwoHop(twoHop, start), numberOfItineraries - flight_count);
+			} else {
+				twoHop.cancel(true);
+			}
+		}
+		return flight_count == 0 ? "No flights match your selection\n" : response.toString();
+	}
+	
+	private ItineraryCursor awaitTwoHop(Future<ItineraryCursor> twoHop, long start) {
+		ItineraryCursor found = fanOut.await(twoHop, start);
+		if (found == null){
+			searchComplete = false;
+			return BufferedCursor.empty();
+		}
+		return found;
+	}
+	
+	/**
+	 * Searches itineraries of up to {@code maxFlights} flights, at most {@link #MAX_FLIGHTS},
+	 * all on the same day, ranked by total time. Up to two flights this is the regular search.
+	 * Longer itineraries are found by the flight index. If searches do not use it already,
+	 * a copy of the whole Flights table is loaded on first use and reloaded once it is older
+	 * than flightservice.search_multi_hop_refresh_ms, so these itineraries may be that stale. A reservation holds at most {@link #MAX_BOOKED_FLIGHTS}
+	 * flights, so longer itineraries are printed as "Itinerary -: ..." and the itinerary IDs
+	 * only number the ones that can be booked.
+	 */
+	public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+		int numberOfItineraries, int maxFlights) {
+		if (directFlight || maxFlights <= 2){
+			return transaction_search(originCity, destinationCity, directFlight || maxFlights <= 1, dayOfMonth, numberOfItineraries);
+		}
+		if (pool != null){
+			return pooled("Failed to search\n",
+				q -> q.transaction_search(originCity, destinationCity, false, dayOfMonth, numberOfItineraries, maxFlights));
+		}
+		if (stats != null){
+			return stats.record("search", counters, () -> multiHopSearch(originCity, destinationCity, dayOfMonth, numberOfItineraries, maxFlights));
+		}
+		return multiHopSearch(originCity, destinationCity, dayOfMonth, numberOfItineraries, maxFlights);
     }
+	
+	private String multiHopSearch(String originCity, String destinationCity, int dayOfMonth, int numberOfItineraries,
+		int maxFlights) {
+		try {
+			response.reset();
+			itineraries.clear();
+			
+			FlightIndex index = flightIndex != null ? flightIndex : FlightIndex.snapshot(conn, multiHopRefreshMillis);
+			long deadline = System.nanoTime() + searchTimeoutMillis * 1000000L;
+			ItineraryCursor multiHop = index.multiHop(originCity, destinationCity, dayOfMonth,
+				Math.min(maxFlights, MAX_FLIGHTS), numberOfItineraries, deadline);
+			int flight_count = appendItineraries(multiHop, numberOfItineraries);
+			return flight_count == 0 ? "No flights match your selection\n" : response.toString();
+		} catch (SQLException e){
+			e.printStackTrace();
+			return "Failed to search\n";
+		}
+	}
+	
+	/**
+	 * Direct flights, either from the flight index or from the database.
+	 */
+	private ItineraryCursor openOneHop(String originCity, String destinationCity, int dayOfMonth, int limit) throws SQLException {
+		if (flightIndex != null){
+			return flightIndex.direct(originCity, destinationCity, dayOfMonth, limit);
+		}
+		PreparedStatement searchOneHopStatement = searchStatement(SEARCH_ONE_HOP_SQL, limit);
+		searchOneHopStatement.clearParameters();
+		searchOneHopStatement.setInt(1, limit);
+		searchOneHopStatement.setString(2, originCity);
+		searchOneHopStatement.setString(3, destinationCity);
+		searchOneHopStatement.setInt(4, dayOfMonth);
+		return new OneHopCursor(searchOneHopStatement.executeQuery());
+	}
+	
+	/**
+	 * One-stop itineraries, either from the flight index or from the database. The Connections
+	 * table is read when it holds at least {@code limit} itineraries per route, otherwise the
+	 * self-join computes them.
+	 */
+	ItineraryCursor openTwoHop(String originCity, String destinationCity, int dayOfMonth, int limit) throws SQLException {
+		if (flightIndex != null){
+			return flightIndex.twoHop(originCity, destinationCity, dayOfMonth, limit);
+		}
+		PreparedStatement searchTwoHopStatement = searchStatement(limit <= connectionsDepth ? SEARCH_CONNECTIONS_SQL : SEARCH_TWO_HOP_SQL, limit);
+		searchTwoHopStatement.clearParameters();
+		searchTwoHopStatement.setInt(1, limit);
+		searchTwoHopStatement.setString(2, originCity);
+		searchTwoHopStatement.setString(3, destinationCity);
+		searchTwoHopStatement.setInt(4, dayOfMonth);
+		twoHopStatement = searchTwoHopStatement;
+		return new TwoHopCursor(searchTwoHopStatement.executeQuery());
+	}
+	
+	/**
+	 * Asks the server to stop the one-stop query this back end is running for
+	 * {@link SearchFanOut}, which frees the connection right away instead of once the query
+	 * is done. Does nothing if no query is running.
+	 */
+	void cancelTwoHop() {
+		Statement running = twoHopStatement;
+		if (running != null){
+			try {
+				running.cancel();
+			} catch (SQLException e){
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * @return the depth set by the last BuildConnections run, 0 if it never ran
+	 */
+	private int readConnectionsDepth() throws SQLException {
+		Statement st = conn.createStatement();
+		try {
+			ResultSet rs = st.executeQuery(CONNECTIONS_DEPTH_SQL);
+			return rs.next() ? rs.getInt("depth") : 0;
+		} finally {
+			st.close();
+		}
+	}
+	
+	/**
+	 * Prints up to {@code limit} itineraries from the cursor and remembers them for booking.
+	 * Itinerary numbers continue from the ones already printed in this search. In a streaming
+	 * search each itinerary is written out right away, so the response never holds more than one.
+	 *
+	 * @return the number of itineraries printed
+	 */
+	private int appendItineraries(ItineraryCursor cursor, int limit) throws SQLException {
+		int count = 0;
+		try {
+			while (count < limit && cursor.next()){
+				appendItinerary(cursor);
+				count++;
+			}
+		} finally {
+			cursor.close();
+		}
+		return count;
+	}
+	
+	private void appendItinerary(ItineraryCursor cursor) throws SQLException {
+		int flights = cursor.flightCount();
+		int time = cursor.totalTime();
+		boolean bookable = flights <= MAX_BOOKED_FLIGHTS;
+		response.append("Itinerary ");
+		if (bookable){
+			response.append(itineraries.size());
+			itineraries.add(time, cursor.dayOfMonth());
+		} else {
+			//no ID: book could not hold all of its flights
+			response.append('-');
+		}
+		response.append(": ").append(flights).append(" flight(s), ").append(time).append(" minutes\n");
+		
+		for (int leg = 0; leg < flights; leg++){
+			cursor.writeFlight(leg, response);
+			if (bookable){
+				itineraries.addFlight(cursor.fid(leg));
+			}
+		}
+		if (stream != null){
+			response.writeTo(stream);
+			response.reset();
+			if (itineraries.size() <= 1){
+				stream.flush();
+			}
+		}
+	}
+	
+	/**
+	 * Rows of {@code SEARCH_ONE_HOP_SQL}.
+	 */
+	class OneHopCursor implements ItineraryCursor {
+		private final ResultSet rs;
+		private final FlightColumns columns;
+		
+		OneHopCursor(ResultSet rs) throws SQLException {
+			this.rs = rs;
+			this.columns = new FlightColumns(rs, "", "total_time");
+		}
+		
+		public boolean next() throws SQLException {
+			return rs.next();
+		}
+		
+		public int flightCount() {
+			return 1;
+		}
+		
+		public int totalTime() throws SQLException {
+			return rs.getInt(columns.time);
+		}
+		
+		public int dayOfMonth() throws SQLException {
+			return rs.getInt(columns.dayOfMonth);
+		}
+		
+		public int fid(int leg) throws SQLException {
+			return rs.getInt(columns.fid);
+		}
+		
+		public void writeFlight(int leg, ResponseWriter out) throws SQLException {
+			columns.write(rs, out);
+		}
+		
+		public void close() throws SQLException {
+			rs.close();
+		}
+	}
+	
+	/**
+	 * Rows of {@code SEARCH_TWO_HOP_SQL} or {@code SEARCH_CONNECTIONS_SQL}; leg 0 reads the columns suffixed with 1, leg 1 those suffixed with 2.
+	 */
+	class TwoHopCursor implements ItineraryCursor {
+		private final ResultSet rs;
+		private final FlightColumns[] legs;
+		private final int totalTime;
+		
+		TwoHopCursor(ResultSet rs) throws SQLException {
+			this.rs = rs;
+			this.legs = new FlightColumns[] {new FlightColumns(rs, "1"), new FlightColumns(rs, "2")};
+			this.totalTime = rs.findColumn("total_time");
+		}
+		
+		public boolean next() throws SQLException {
+			return rs.next();
+		}
+		
+		public int flightCount() {
+			return 2;
+		}
+		
+		public int totalTime() throws SQLException {
+			return rs.getInt(totalTime);
+		}
+		
+		public int dayOfMonth() throws SQLException {
+			return rs.getInt(legs[0].dayOfMonth);
+		}
+		
+		public int fid(int leg) throws SQLException {
+			return rs.getInt(legs[leg].fid);
+		}
+		
+		public void writeFlight(int leg, ResponseWriter out) throws SQLException {
+			legs[leg].write(rs, out);
+		}
+		
+		public void close() throws SQLException {
+			rs.close();
+		}
+	}
 
     /**
      * Same as {@code transaction_search} except that it only performs single hop search and
@@ -629,146 +942,137 @@ public class Query {
      * successful reservation is made by any user in the system.
      */
     public String transaction_book(int itineraryId) {
+		if (pool != null){
+			return pooled("Booking failed\n", q -> q.transaction_book(itineraryId));
+		}
+		if (stats != null){
+			return stats.record("book", counters, () -> book(itineraryId));
+		}
+		return book(itineraryId);
+    }
+	
+	private String book(int itineraryId) {
+		if (username == null){
+			return "Cannot book reservations, not logged in\n";
+		} else if (itineraryId < 0 || itineraryId >= itineraries.size()){
+			return "No such itinerary " + itineraryId + "\n";
+		}
+		int flights = itineraries.flightCount(itineraryId);
+		int firstFID = itineraries.fid(itineraryId, 0);
+		int secondFID = flights == 2 ? itineraries.fid(itineraryId, 1) : 0;
+		int day = itineraries.dayOfMonth(itineraryId);
 		try {
-			if (username == null){
-				return "Cannot book reservations, not logged in\n";
-			} else if (itineraryId < 0 || itineraryId > itineraries.size()){
-				return "No such itinerary " + itineraryId + "\n";
+			reservationIds.prefetch(statements);
+		} catch (SQLException e){
+			e.printStackTrace();
+			return "Booking failed\n";
+		}
+		
+		if (useProcedures){
+			return inTransaction("book", null, "Booking failed\n", () -> bookByProcedure(firstFID, secondFID, day));
+		}
+		//serializable: the seat upsert must not race another booking inserting the same Booking row
+		return inTransaction("book", BEGIN_TRANSACTION_SQL, "Booking failed\n", () -> {
+			//one conditional upsert per flight, no separate capacity reads
+			if (!reserveSeat(firstFID) || (secondFID != 0 && !reserveSeat(secondFID))){
+				rollbackTransaction();
+				return "Booking failed\n";
 			}
-			beginTransaction();
 			
-			ArrayList<Integer> itinerary = itineraries.get(itineraryId);
-
-			int reservation_row_number = checkReservationRow();
-			if (itinerary.size() == 3){
-				int date = itinerary.get(1);
-				int flight_id = itinerary.get(2);
-				checkBookingStatement.clearParameters();
-				checkBookingStatement.setInt(1, flight_id);
-				ResultSet flightResults = checkBookingStatement.executeQuery();
-				boolean booking = flightResults.next();
-				int capacity = checkFlightCapacity(flight_id);
-				if (capacity == 0){
-					rollbackTransaction();
-					return "Booking failed\n";
-				}
-				if (!booking) {
-					newBookingStatement.clearParameters();
-					newBookingStatement.setInt(1, flight_id);
-					newBookingStatement.executeUpdate();
-				} else if (capacity > flightResults.getInt("count")){
-					updateBookingStatement.clearParameters();
-					updateBookingStatement.setInt(1, flightResults.getInt("count")+1);
-					updateBookingStatement.setInt(2, flight_id);
-					updateBookingStatement.executeUpdate();
-				} else {
-					rollbackTransaction();
-					return "Booking failed\n";
-				}
-				oneReservationStatement.setString(1, username);
-				oneReservationStatement.setInt(2, reservation_row_number+1);
-				oneReservationStatement.setInt(3, flight_id);
-				oneReservationStatement.setInt(4, date);
-				oneReservationStatement.setString(5, "false");
-			
-				try {
-					oneReservationStatement.executeUpdate();
-				} catch (SQLException e) {
-					//e.printStackTrace();
-					rollbackTransaction();
-					return "You cannot book two flights in the same day\n";
-				}
-				commitTransaction();
+			takenRid = reservationIds.next(statements);
+			PreparedStatement reservationStatement;
+			if (secondFID == 0){
+				reservationStatement = statement(ONE_RESERVATION_SQL);
+				reservationStatement.setString(1, username);
+				reservationStatement.setInt(2, takenRid);
+				reservationStatement.setInt(3, firstFID);
+				reservationStatement.setInt(4, day);
+				reservationStatement.setString(5, "false");
 			} else {
-				// non direct flights
-				
-				int date = itinerary.get(1);
-				int flight_id_1 = itinerary.get(2);
-				int flight_id_2 = itinerary.get(3);
-		
-				//check flight 1 capacity
-				checkBookingStatement.clearParameters();
-				checkBookingStatement.setInt(1, flight_id_1);
-				ResultSet flightResults1 = checkBookingStatement.executeQuery();
-				boolean booking1 = flightResults1.next();
-				int capacity1 = checkFlightCapacity(flight_id_1);
-				
-				if (capacity1 == 0){
-					rollbackTransaction();
-					return "Booking failed\n";
-				}
-				
-				if (!booking1) {
-					newBookingStatement.clearParameters();
-					newBookingStatement.setInt(1, flight_id_1);
-					newBookingStatement.executeUpdate();
-				} else if (capacity1 > flightResults1.getInt("count")){
-					updateBookingStatement.clearParameters();
-					updateBookingStatement.setInt(1, flightResults1.getInt("count")+1);
-					updateBookingStatement.setInt(2, flight_id_1);
-					updateBookingStatement.executeUpdate();
-				} else {
-					rollbackTransaction();
-					return "Booking failed\n";
-				}
-				
-				//check flight 2 capacity
-				checkBookingStatement.clearParameters();
-				checkBookingStatement.setInt(1, flight_id_2);
-				ResultSet flightResults2 = checkBookingStatement.executeQuery();
-				boolean booking2 = flightResults2.next();
-				int capacity2 = checkFlightCapacity(flight_id_2);
-				
-				if (capacity2 == 0){
-					rollbackTransaction();
-					return "Booking failed\n";
-				}
-				
-				if (!booking2) {
-					newBookingStatement.clearParameters();
-					newBookingStatement.setInt(1, flight_id_2);
-					newBookingStatement.executeUpdate();
-				} else if (capacity2 > flightResults2.getInt("count")){
-					updateBookingStatement.clearParameters();
-					updateBookingStatement.setInt(1, flightResults2.getInt("count")+1);
-					updateBookingStatement.setInt(2, flight_id_2);
-					updateBookingStatement.executeUpdate();
-				} else {
-					rollbackTransaction();
-					return "Booking failed\n";
-				}
-				//flightResults1.close();
-				
-				
-				twoReservationStatement.setString(1, username);
-				twoReservationStatement.setInt(2, reservation_row_number+1);
-				twoReservationStatement.setInt(3, flight_id_1);
-				twoReservationStatement.setInt(4, flight_id_2);
-				twoReservationStatement.setInt(5, date);
-				twoReservationStatement.setString(6, "false");
-				
-				try {
-					twoReservationStatement.executeUpdate();
-				} catch (SQLException e) {
-					e.printStackTrace();
-					rollbackTransaction();
-					return "You cannot book two flights in the same day\n";
+				reservationStatement = statement(TWO_RESERVATION_SQL);
+				reservationStatement.setString(1, username);
+				reservationStatement.setInt(2, takenRid);
+				reservationStatement.setInt(3, firstFID);
+				reservationStatement.setInt(4, secondFID);
+				reservationStatement.setInt(5, day);
+				reservationStatement.setString(6, "false");
+			}
+			try {
+				reservationStatement.executeUpdate();
+			} catch (SQLException e) {
+				if (!isConstraintViolation(e)){
+					throw e;
 				}
-				commitTransaction();
+				//the user already has a reservation on that day
+				rollbackTransaction();
+				reservationIds.unused(takenRid);
+				return "You cannot book two flights in the same day\n";
 			}
-			return "Booked flight(s), reservation ID: " + (reservation_row_number+1) + "\n";
-		} catch (SQLException e){
-			e.printStackTrace();
-			//rollbackTransaction();
-			return "Booking failed\n";
-		}
+			changedFID1 = firstFID;
+			changedFID2 = secondFID;
+			return "Booked flight(s), reservation ID: " + takenRid + "\n";
+		});
     }
 
-	/*
-	private static boolean isConstraintViolation(SQLException e) throws SQLException{
-		return e.getSQLState().startsWith("23");
+	/**
+	 * Books through the BookReservation procedure, which runs the statements of
+	 * {@link #transaction_book} as one transaction on the server.
+	 *
+	 * @param secondFID 0 for a direct flight
+	 */
+	private String bookByProcedure(int firstFID, int secondFID, int day) throws SQLException {
+		//with a block size of one the procedure takes the ID from the counter row
+		takenRid = reservationIds.nextPrefetched();
+		PreparedStatement bookStatement = statement(BOOK_PROCEDURE_SQL);
+		bookStatement.setString(1, username);
+		bookStatement.setInt(2, firstFID);
+		if (secondFID == 0){
+			bookStatement.setNull(3, Types.INTEGER);
+		} else {
+			bookStatement.setInt(3, secondFID);
+		}
+		bookStatement.setInt(4, day);
+		bookStatement.setInt(5, takenRid);
+		try (ResultSet result = bookStatement.executeQuery()) {
+			result.next();
+			switch (result.getInt("status")){
+			case 0:
+				changedFID1 = firstFID;
+				changedFID2 = secondFID;
+				return "Booked flight(s), reservation ID: " + result.getInt("rid") + "\n";
+			case 1:
+				reservationIds.unused(takenRid);
+				return "Booking failed\n";
+			default:
+				reservationIds.unused(takenRid);
+				return "You cannot book two flights in the same day\n";
+			}
+		}
+	}
+
+	/**
+	 * Gives back one seat taken by {@link #reserveSeat}.
+	 */
+	private void releaseSeat(int fid) throws SQLException {
+		PreparedStatement releaseSeatStatement = statement(RELEASE_SEAT_SQL);
+		releaseSeatStatement.setInt(1, fid);
+		releaseSeatStatement.executeUpdate();
+	}
+
+	/**
+	 * Takes one seat on the flight if it is not full yet.
+	 *
+	 * @return false if the flight has no seat left
+	 */
+	private boolean reserveSeat(int fid) throws SQLException {
+		PreparedStatement reserveSeatStatement = statement(RESERVE_SEAT_SQL);
+		reserveSeatStatement.setInt(1, fid);
+		return reserveSeatStatement.executeUpdate() == 1;
+	}
+
+	private static boolean isConstraintViolation(SQLException e) {
+		return e.getSQLState() != null && e.getSQLState().startsWith("23");
 	}
-	*/
 	
     /**
      * Implements the reservations function.
@@ -792,71 +1096,97 @@ public class Query {
      * @see Flight#toString()
      */
     public String transaction_reservations() {
+		if (pool != null){
+			return pooled("Failed to retrieve reservations\n", q -> q.transaction_reservations());
+		}
+		if (stats != null){
+			return stats.record("reservations", counters, () -> reservations());
+		}
+		return reservations();
+    }
+	
+	private String reservations() {
 		try {
-			StringBuffer sb = new StringBuffer();
 			if (username == null){
 				return "Cannot view reservations, not logged in\n";
 			} 
-			searchReservationStatement.clearParameters();
+			//reservations and their flights in one round trip
+			PreparedStatement searchReservationStatement = statement(SEARCH_RESERVATION_SQL);
 			searchReservationStatement.setString(1, username);
-			ResultSet reservation_list = searchReservationStatement.executeQuery();
-				
-			if (reservation_list.isBeforeFirst()){
-				while (reservation_list.next()){
-					int rid = reservation_list.getInt("rid");
-					int fid1 = reservation_list.getInt("fid1");
-					int fid2 = -1; //place holder
-					searchSecondFidStatement.clearParameters();
-					searchSecondFidStatement.setString(1, username);
-					searchSecondFidStatement.setInt(2, rid);
-					ResultSet secondID = searchSecondFidStatement.executeQuery();
-					//boolean hasSecondFlight = false;
-					if (secondID.next()){
-						//hasSecondFlight = true;
-						
-						fid2 = secondID.getInt("fid2");
-						
-					}
-					
-					String paid = reservation_list.getString("paid");
-					sb.append("Reservation " + rid + " paid: " + paid + ":\n");
-					
-					searchFlightStatement.clearParameters();
-					searchFlightStatement.setInt(1, fid1);
-					ResultSet f1 = searchFlightStatement.executeQuery();
-					f1.next();
-					String s1 = "ID: " + f1.getInt("fid") + " Day: " + f1.getInt("day_of_month") +
-						" Carrier: " + f1.getString("carrier_id") + " Number: " + f1.getString("flight_num") +
-						" Origin: " + f1.getString("origin_city") + " Dest: " + f1.getString("dest_city") + 
-						" Duration: " + f1.getInt("actual_time") + " Capacity: " + f1.getInt("capacity") +
-						" Price: " + f1.getInt("price") + "\n";
-					sb.append(s1);
-					f1.close();
-					if (fid2 != 0){
-						searchFlightStatement.setInt(1, fid2);
-						ResultSet f2 = searchFlightStatement.executeQuery();
-						f2.next();
-						
-						String s2 = "ID: " + f2.getInt("fid") + " Day: " + f2.getInt("day_of_month") +
-							" Carrier: " + f2.getString("carrier_id") + " Number: " + f2.getString("flight_num") +
-							" Origin: " + f2.getString("origin_city") + " Dest: " + f2.getString("dest_city") + 
-							" Duration: " + f2.getInt("actual_time") + " Capacity: " + f2.getInt("capacity") +
-							" Price: " + f2.getInt("price") + "\n";
-						sb.append(s2);
-						f2.close();
-					}
-				}
-			} else {
-				return "No reservations found\n";
-			}
+			return appendReservations(searchReservationStatement.executeQuery());
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return "Failed to retrieve reservations\n";
+		}
+    }
 
-			return sb.toString();
+    /**
+     * Paged variant of {@code transaction_reservations} for users with long histories.
+     *
+     * @param afterReservationId only list reservations with a larger ID; 0 for the first page
+     * @param pageSize maximum number of reservations to list
+     *
+     * @return the same messages and format as {@code transaction_reservations}, restricted to
+     * the requested page. The next page starts after the last reservation ID printed.
+     */
+    public String transaction_reservations(int afterReservationId, int pageSize) {
+		if (pool != null){
+			return pooled("Failed to retrieve reservations\n", q -> q.transaction_reservations(afterReservationId, pageSize));
+		}
+		if (stats != null){
+			return stats.record("reservations", counters, () -> reservations(afterReservationId, pageSize));
+		}
+		return reservations(afterReservationId, pageSize);
+    }
+	
+	private String reservations(int afterReservationId, int pageSize) {
+		try {
+			if (username == null){
+				return "Cannot view reservations, not logged in\n";
+			}
+			PreparedStatement reservationPageStatement = statement(SEARCH_RESERVATION_PAGE_SQL);
+			reservationPageStatement.setFetchSize(Math.max(pageSize, 1));
+			reservationPageStatement.setInt(1, pageSize);
+			reservationPageStatement.setString(2, username);
+			reservationPageStatement.setInt(3, afterReservationId);
+			return appendReservations(reservationPageStatement.executeQuery());
 		} catch (SQLException e) {
 			e.printStackTrace();
 			return "Failed to retrieve reservations\n";
 		}
     }
 
+	/**
+	 * Prints the rows of {@code SEARCH_RESERVATION_SQL} or {@code SEARCH_RESERVATION_PAGE_SQL}
+	 * in a single pass.
+	 */
+	private String appendReservations(ResultSet reservation_list) throws SQLException {
+		response.reset();
+		try {
+			int rid = reservation_list.findColumn("rid");
+			int paid = reservation_list.findColumn("paid");
+			FlightColumns first = new FlightColumns(reservation_list, "1");
+			FlightColumns second = new FlightColumns(reservation_list, "2");
+			while (reservation_list.next()){
+				response.append("Reservation ").append(reservation_list.getInt(rid))
+					.append(" paid: ").append(reservation_list.getString(paid)).append(":\n");
+				first.write(reservation_list, response);
+				cacheFlight(reservation_list, first);
+				reservation_list.getInt(second.fid);
+				if (!reservation_list.wasNull()){
+					second.write(reservation_list, response);
+					cacheFlight(reservation_list, second);
+				}
+			}
+		} finally {
+			reservation_list.close();
+		}
+		if (response.length() == 0){
+			return "No reservations found\n";
+		}
+		return response.toString();
+	}
+
     /**
      * Implements the cancel operation.
      *
@@ -872,59 +1202,66 @@ public class Query {
 	 
 	
     public String transaction_cancel(int reservationId) {
+		if (pool != null){
+			return pooled("Failed to cancel reservation " + reservationId + "\n", q -> q.transaction_cancel(reservationId));
+		}
+		if (stats != null){
+			return stats.record("cancel", counters, () -> cancel(reservationId));
+		}
+		return cancel(reservationId);
+    }
+	
+	private String cancel(int reservationId) {
         // only implement this if you are interested in earning extra credit for the HW!
-		try {
-			if (username == null){
-				return "Cannot pay, not logged in\n";
+		if (username == null){
+			return "Cannot cancel reservations, not logged in\n";
+		}
+		if (useProcedures){
+			return inTransaction("cancel", null, "Failed to cancel reservation " + reservationId + "\n", () -> {
+				PreparedStatement cancelStatement = statement(CANCEL_PROCEDURE_SQL);
+				cancelStatement.setString(1, username);
+				cancelStatement.setInt(2, reservationId);
+				try (ResultSet result = cancelStatement.executeQuery()) {
+					result.next();
+					if (result.getInt("status") != 0){
+						return "Failed to cancel reservation " + reservationId + "\n";
+					}
+					changedFID1 = result.getInt("fid1");
+					changedFID2 = result.getInt("fid2");
+					return "Canceled reservation " + reservationId + "\n";
+				}
+			});
+		}
+		//the reservation row is read with UPDLOCK and the seats are changed by key
+		return inTransaction("cancel", BEGIN_REPEATABLE_READ_SQL, "Failed to cancel reservation " + reservationId + "\n", () -> {
+			PreparedStatement reservationFlightsStatement = statement(RESERVATION_FLIGHTS_SQL);
+			reservationFlightsStatement.setString(1, username);
+			reservationFlightsStatement.setInt(2, reservationId);
+			int firstFID;
+			int secondFID;
+			try (ResultSet cancel = reservationFlightsStatement.executeQuery()) {
+				if (!cancel.next()){
+					rollbackTransaction();
+					return "Failed to cancel reservation " + reservationId + "\n";
+				}
+				firstFID = cancel.getInt("fid1");
+				secondFID = cancel.getInt("fid2");
 			}
-			beginTransaction();
-
-			searchFirstFidStatement.clearParameters();
-			searchFirstFidStatement.setString(1, username);
-			searchFirstFidStatement.setInt(2, reservationId);
-			ResultSet cancel = searchFirstFidStatement.executeQuery();
 			
-			searchSecondFidStatement.clearParameters();
-			searchSecondFidStatement.setString(1, username);
-			searchSecondFidStatement.setInt(2, reservationId);
-			ResultSet cancel2 = searchSecondFidStatement.executeQuery();
+			PreparedStatement cancelReservationStatement = statement(CANCEL_RESERVATION_SQL);
+			cancelReservationStatement.setString(1, username);
+			cancelReservationStatement.setInt(2, reservationId);
+			cancelReservationStatement.executeUpdate();
 			
-			if (cancel.isBeforeFirst()){
-				cancel.next();
-				cancelReservationStatement.setString(1, username);
-				cancelReservationStatement.setInt(2, reservationId);
-				cancelReservationStatement.executeUpdate();
-				
-				int firstFID = cancel.getInt("fid1");
-				checkBookingStatement.clearParameters();
-				checkBookingStatement.setInt(1, firstFID);
-				ResultSet f1 = checkBookingStatement.executeQuery();
-				int current1 = f1.getInt("count");
-				updateBookingStatement.clearParameters();
-				updateBookingStatement.setInt(1, current1-1);
-				updateBookingStatement.setInt(2, firstFID);
-				updateBookingStatement.executeQuery();
-			} else {
-				rollbackTransaction();
-			}
-			if (cancel2.next()){
-				int secondFID = cancel2.getInt("fid2");
-				checkBookingStatement.clearParameters();
-				checkBookingStatement.setInt(1, secondFID);
-				ResultSet f2 = checkBookingStatement.executeQuery();
-				int current2 = f2.getInt("count");
-				updateBookingStatement.clearParameters();
-				updateBookingStatement.setInt(1, current2-1);
-				updateBookingStatement.setInt(2, secondFID);
-				updateBookingStatement.executeQuery();
+			//give the seats back
+			releaseSeat(firstFID);
+			if (secondFID != 0){
+				releaseSeat(secondFID);
 			}
-			commitTransaction();
+			changedFID1 = firstFID;
+			changedFID2 = secondFID;
 			return "Canceled reservation " + reservationId + "\n";
-
-		} catch (SQLException e){
-			//rollbackTransaction();
-			return "Failed to cancel reservation " + reservationId;
-		}
+		});
     }
 	
 
@@ -944,122 +1281,327 @@ public class Query {
      * where [balance] is the remaining balance in the user's account.
      */
     public String transaction_pay(int reservationId) {
-		try {
-			if (username == null){
-				return "Cannot pay, not logged in\n";
-			}
-			beginTransaction();
-			
+		if (pool != null){
+			return pooled("Failed to pay for reservation " + reservationId + "\n", q -> q.transaction_pay(reservationId));
+		}
+		if (stats != null){
+			return stats.record("pay", counters, () -> pay(reservationId));
+		}
+		return pay(reservationId);
+    }
+	
+	private String pay(int reservationId) {
+		if (username == null){
+			return "Cannot pay, not logged in\n";
+		}
+		if (useProcedures){
+			return inTransaction("pay", null, "Failed to pay for reservation " + reservationId + "\n", () -> {
+				PreparedStatement payStatement = statement(PAY_PROCEDURE_SQL);
+				payStatement.setString(1, username);
+				payStatement.setInt(2, reservationId);
+				try (ResultSet result = payStatement.executeQuery()) {
+					result.next();
+					int balance = result.getInt("balance");
+					switch (result.getInt("status")){
+					case 0:
+						return "Paid reservation: "+reservationId+" remaining balance: "+balance+"\n";
+					case 1:
+						return "Cannot find unpaid reservation "+reservationId+" under user: "+username+"\n";
+					default:
+						return "User has only "+balance+" in account but itinerary costs "+result.getInt("cost")+"\n";
+					}
+				}
+			});
+		}
+		//one user row and one reservation row, both read with UPDLOCK
+		return inTransaction("pay", BEGIN_REPEATABLE_READ_SQL, "Failed to pay for reservation " + reservationId + "\n", () -> {
 			//query for the user balance 
+			PreparedStatement checkBalanceStatement = statement(SEARCH_BALANCE_SQL);
 			checkBalanceStatement.clearParameters();
 			checkBalanceStatement.setString(1, username);
-			ResultSet b = checkBalanceStatement.executeQuery();
-			b.next();
-			int user_balance = b.getInt("balance");
+			int user_balance;
+			try (ResultSet b = checkBalanceStatement.executeQuery()) {
+				b.next();
+				user_balance = b.getInt("balance");
+			}
 			
-			//get the price of the first flight
+			//get the flights of the reservation
+			PreparedStatement unpaidReservationStatement = statement(SEARCH_UNPAID_SQL);
 			unpaidReservationStatement.clearParameters();
 			unpaidReservationStatement.setString(1, username);
 			unpaidReservationStatement.setInt(2, reservationId);
-			ResultSet unpaid = unpaidReservationStatement.executeQuery();
-			
-			int total_price = 0;
-			if (!unpaid.next()){
-				rollbackTransaction();
-				return "Cannot find unpaid reservation "+reservationId+" under user: "+username+"\n";
-			} else {
-				//unpaid.next() ?? maybe not sure
-
-				int fid1 = unpaid.getInt("fid1");
-				int fid2 = unpaid.getInt("fid2");
-				checkPriceStatement.clearParameters();
-				checkPriceStatement.setInt(1, fid1);
-				ResultSet p1 = checkPriceStatement.executeQuery();
-				p1.next();
-				total_price += p1.getInt("price");
-				p1.close();
-				
-				//unpaidReservationStatement2.clearParameters();
-				//unpaidReservationStatement2.setString(1, username);
-				//unpaidReservationStatement2.setInt(2, reservationId);
-				//ResultSet second = unpaidReservationStatement2.executeQuery();
-				if (fid2 != 0){
-					//second fid is not null
-					checkPriceStatement.clearParameters();
-					checkPriceStatement.setInt(1, fid2);
-					ResultSet p2 = checkPriceStatement.executeQuery();
-					p2.next();
-					total_price += p2.getInt("price");
-					p2.close();
-				}
-				
-				if (total_price > user_balance){
+			int fid1;
+			int fid2;
+			try (ResultSet unpaid = unpaidReservationStatement.executeQuery()) {
+				if (!unpaid.next()){
 					rollbackTransaction();
-					return "User has only "+user_balance+" in account but itinerary costs "+total_price+"\n";
-				} else {					
-					
-					updatePaidStatement.clearParameters();
-					updatePaidStatement.setString(1, "true");
-					updatePaidStatement.setInt(2, reservationId);
-					updatePaidStatement.executeUpdate();
-					
-					updateBalanceStatement.clearParameters();
-					updateBalanceStatement.setInt(1, (user_balance-total_price));
-					updateBalanceStatement.setString(2, username);
-					updateBalanceStatement.executeUpdate();
-					
-					commitTransaction();
-					return "Paid reservation: "+reservationId+" remaining balance: "+(user_balance-total_price)+"\n";
+					return "Cannot find unpaid reservation "+reservationId+" under user: "+username+"\n";
 				}
+				fid1 = unpaid.getInt("fid1");
+				fid2 = unpaid.getInt("fid2");
 			}
-		} catch (SQLException e){
-			e.printStackTrace();
-			//rollbackTransaction();
-			return "Failed to pay for reservation " + reservationId + "\n";
-		}
+			
+			int total_price = lookupFlight(fid1).price;
+			if (fid2 != 0){
+				//second fid is not null
+				total_price += lookupFlight(fid2).price;
+			}
+			
+			if (total_price > user_balance){
+				rollbackTransaction();
+				return "User has only "+user_balance+" in account but itinerary costs "+total_price+"\n";
+			}
+			
+			PreparedStatement updatePaidStatement = statement(UPDATE_UNPAID_SQL);
+			updatePaidStatement.clearParameters();
+			updatePaidStatement.setString(1, "true");
+			updatePaidStatement.setInt(2, reservationId);
+			updatePaidStatement.executeUpdate();
+			
+			PreparedStatement updateBalanceStatement = statement(UPDATE_BALANCE_SQL);
+			updateBalanceStatement.clearParameters();
+			updateBalanceStatement.setInt(1, (user_balance-total_price));
+			updateBalanceStatement.setString(2, username);
+			updateBalanceStatement.executeUpdate();
+			
+			return "Paid reservation: "+reservationId+" remaining balance: "+(user_balance-total_price)+"\n";
+		});
     }
 
 
     /* some utility functions below */
 
+	/**
+	 * @return the prepared statement for {@code sql} on this connection, prepared on first use
+	 */
+	private PreparedStatement statement(String sql) throws SQLException {
+		return statements.get(sql);
+	}
+
+	/**
+	 * The statement of a search for {@code limit} itineraries, with its fetch size set. The
+	 * driver's default direct select sends the whole result and ignores the fetch size, which
+	 * is fine when one fetch would hold every row anyway. Larger searches read a fast-forward
+	 * server cursor instead, which costs a round trip per fetch and one to close it, but lets
+	 * the first itineraries through before the server has sent the rest.
+	 */
+	private PreparedStatement searchStatement(String sql, int limit) throws SQLException {
+		PreparedStatement ps = limit <= searchFetchSize ? statement(sql) : statements.get(sql, SERVER_CURSOR_FORWARD_ONLY);
+		ps.setFetchSize(Math.min(limit, searchFetchSize));
+		return ps;
+	}
+
+	/** @return the statement cache of this connection, null for a pooled session */
+	StatementCache statementCache() {
+		return statements;
+	}
+
+	/**
+	 * Drops the cached searches that print one of these flights, whose seats just changed.
+	 *
+	 * @param secondFID 0 for a reservation of one flight
+	 */
+	private void invalidateSearches(int firstFID, int secondFID) {
+		if (searchCache != null){
+			searchCache.invalidate(firstFID);
+			if (secondFID != 0){
+				searchCache.invalidate(secondFID);
+			}
+		}
+	}
+	
+	/**
+	 * Runs one transaction of this session on a back end borrowed from the pool. The
+	 * session's user and search results are handed to the back end for the duration of
+	 * the call and taken back afterwards.
+	 *
+	 * @param failure the response to return if no connection could be borrowed
+	 */
+	private String pooled(String failure, Function<Query, String> transaction) {
+		Query backend;
+		try {
+			backend = pool.borrow();
+		} catch (SQLException e){
+			e.printStackTrace();
+			return failure;
+		}
+		backend.username = username;
+		backend.itineraries = itineraries;
+		try {
+			return transaction.apply(backend);
+		} finally {
+			username = backend.username;
+			backend.username = null;
+			backend.itineraries = null;
+			pool.release(backend);
+		}
+	}
+
     public void beginTransaction() throws SQLException {
+        beginTransaction(BEGIN_TRANSACTION_SQL);
+    }
+
+    /**
+     * @param beginSql sets the isolation level and begins, e.g. {@code BEGIN_REPEATABLE_READ_SQL}
+     */
+    private void beginTransaction(String beginSql) throws SQLException {
         conn.setAutoCommit(false);
+        PreparedStatement beginTransactionStatement = statement(beginSql);
         beginTransactionStatement.executeUpdate();
     }
 
     public void commitTransaction() throws SQLException {
+        PreparedStatement commitTransactionStatement = statement(COMMIT_SQL);
         commitTransactionStatement.executeUpdate();
         conn.setAutoCommit(true);
     }
 
     public void rollbackTransaction() throws SQLException {
+        PreparedStatement rollbackTransactionStatement = statement(ROLLBACK_SQL);
         rollbackTransactionStatement.executeUpdate();
         conn.setAutoCommit(true);
     }
 
+	/**
+	 * Rolls back after a failed statement. The server may already have rolled the
+	 * transaction back (e.g. for a deadlock victim), so errors are ignored; the connection
+	 * is always returned to autocommit at read committed.
+	 */
+	private void rollbackQuietly() {
+		try {
+			if (!conn.getAutoCommit()){
+				rollbackTransaction();
+			}
+		} catch (SQLException e){
+			// nothing left to roll back, but the isolation level may not have been reset
+			try {
+				statement(READ_COMMITTED_SQL).executeUpdate();
+			} catch (SQLException ignored){
+				// the connection is gone
+			}
+		}
+		try {
+			conn.setAutoCommit(true);
+		} catch (SQLException e){
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * One attempt of a read-write transaction, see {@link #inTransaction}.
+	 */
+	private interface Transaction {
+		/**
+		 * Runs after the transaction began. To refuse, it rolls back itself and returns the
+		 * response; otherwise the transaction is committed once it returns. In autocommit,
+		 * it only reports what changed.
+		 */
+		String run() throws SQLException;
+	}
+
+	/**
+	 * Runs {@code transaction} until it commits or refuses. An attempt that throws is always
+	 * rolled back; it is run again after a backoff if {@link #isRetryable} says so, at most
+	 * {@code maxRetries} times, otherwise {@code failure} is returned.
+	 *
+	 * Seats changed by the transaction invalidate the cached searches once it committed, and
+	 * the reservation ID it took is given back if it was rolled back.
+	 *
+	 * @param name the transaction type its retries are counted under
+	 * @param beginSql the isolation level of the transaction type, see {@link #beginTransaction(String)};
+	 * null for a single statement that is a transaction of its own, such as a stored procedure
+	 */
+	private String inTransaction(String name, String beginSql, String failure, Transaction transaction) {
+		for (int attempt = 0; ; attempt++){
+			changedFID1 = 0;
+			changedFID2 = 0;
+			takenRid = 0;
+			try {
+				if (beginSql != null){
+					beginTransaction(beginSql);
+				}
+				String response = transaction.run();
+				if (!conn.getAutoCommit()){
+					commitTransaction();
+				}
+				if (changedFID1 != 0){
+					invalidateSearches(changedFID1, changedFID2);
+				}
+				return response;
+			} catch (SQLException e){
+				rollbackQuietly();
+				if (takenRid != 0){
+					reservationIds.unused(takenRid);
+				}
+				if (!isRetryable(e) || attempt >= maxRetries){
+					e.printStackTrace();
+					return failure;
+				}
+				if (stats != null){
+					stats.retried(name);
+				}
+				backoff(attempt);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the statement only failed because of concurrent transactions, so the
+	 * transaction can simply be run again: deadlock victim (1205), lock timeout (1222),
+	 * snapshot update conflict (3960) or any other serialization failure (SQLState 40001).
+	 * Everything else, e.g. a lost connection or a constraint violation, is fatal.
+	 */
+	private static boolean isRetryable(SQLException e) {
+		return "40001".equals(e.getSQLState()) || e.getErrorCode() == 1205 || e.getErrorCode() == 1222
+			|| e.getErrorCode() == 3960;
+	}
+
+	/**
+	 * Sleeps before retry number {@code attempt + 1}: exponential with full jitter, capped at one second.
+	 */
+	private static void backoff(int attempt) {
+		long cap = Math.min(1000, 10L << Math.min(attempt, 10));
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+    /**
+     * Reads a Flights row through the flight cache. The returned holder is reused by the
+     * next lookup.
+     */
+    private Flight lookupFlight(int fid) throws SQLException {
+        if (flightCache != null && flightCache.get(fid, flight)) {
+            return flight;
+        }
+        PreparedStatement searchFlightStatement = statement(SEARCH_FLIGHT_SQL);
+        searchFlightStatement.setInt(1, fid);
+        ResultSet results = searchFlightStatement.executeQuery();
+        try {
+            if (!results.next()) {
+                throw new SQLException("No flight with fid " + fid);
+            }
+            new FlightColumns(results, "").read(results, flight);
+        } finally {
+            results.close();
+        }
+        if (flightCache != null) {
+            flightCache.put(flight);
+        }
+        return flight;
+    }
+
     /**
-     * Shows an example of using PreparedStatements after setting arguments. You don't need to
-     * use this method if you don't want to.
+     * Adds the flight in the given columns of the current row to the flight cache.
      */
-    private int checkFlightCapacity(int fid) throws SQLException {
-        checkFlightCapacityStatement.clearParameters();
-        checkFlightCapacityStatement.setInt(1, fid);
-        ResultSet results = checkFlightCapacityStatement.executeQuery();
-        results.next();
-        int capacity = results.getInt("capacity");
-        results.close();
-
-        return capacity;
+    private void cacheFlight(ResultSet rs, FlightColumns columns) throws SQLException {
+        if (flightCache != null) {
+            columns.read(rs, flight);
+            flightCache.put(flight);
+        }
     }
-	
-	private int checkReservationRow() throws SQLException {
-		checkReservationRowStatement.clearParameters();
-		ResultSet results = checkReservationRowStatement.executeQuery();
-		results.next();
-		int row_number = results.getInt("row_number");
-		results.close();
-		return row_number;
-	}
 }
 
 
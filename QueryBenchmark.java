@@ -0,0 +1,268 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures throughput and latency percentiles of the Query transactions, for every
+ * transaction type at 1, 4, 16 and 64 concurrent sessions by default.
+ *
+ * Every session is a Query with its own connection, logged in as its own user, running the
+ * transaction in a closed loop. A run is a warm-up period followed by a measured period.
+ * Only the measured transaction is timed: the search before a booking, the booking before a
+ * payment and the cancellation that puts the seats back are not.
+ *
+ * The benchmark runs against the database in the config file, e.g. a local SQL Server, and
+ * clears the customer tables before every run. Settings are system properties:
+ * <ul>
+ * <li>{@code -Dconfig=dbconn.properties}</li>
+ * <li>{@code -Dflights=<rows>}: first replace FLIGHTS with a synthetic schedule of that size,
+ * e.g. 5M; the shape of the schedule is set as described in FlightsGenerator</li>
+ * <li>{@code -Dops=search,book,pay,reservations}</li>
+ * <li>{@code -Dsessions=1,4,16,64}</li>
+ * <li>{@code -Dwarmup=5 -Dseconds=20}: period lengths in seconds</li>
+ * <li>{@code -Droutes=500}: how many (origin, destination, day) searches are sampled</li>
+ * </ul>
+ */
+public class QueryBenchmark {
+    private static final String SAMPLE_ROUTES_SQL =
+        "SELECT TOP (?) origin_city, dest_city, day_of_month FROM Flights ORDER BY NEWID()";
+
+    private final String config;
+    private final int warmupSeconds;
+    private final int measureSeconds;
+    // origin, destination and day of sampled flights; searching them finds a direct flight
+    private final List<String[]> routes = new ArrayList<>();
+
+    public QueryBenchmark(String config, int warmupSeconds, int measureSeconds) {
+        this.config = config;
+        this.warmupSeconds = warmupSeconds;
+        this.measureSeconds = measureSeconds;
+    }
+
+    void sampleRoutes(Connection conn, int count) throws Exception {
+        PreparedStatement ps = conn.prepareStatement(SAMPLE_ROUTES_SQL);
+        try {
+            ps.setInt(1, count);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                routes.add(new String[] {rs.getString(1), rs.getString(2), String.valueOf(rs.getInt(3))});
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+        if (routes.isEmpty()) {
+            throw new IllegalStateException("FLIGHTS is empty, load it or run with -Dflights=<rows>");
+        }
+    }
+
+    /**
+     * One logged in user and its connection.
+     */
+    class Session {
+        final Query q;
+        final Random random;
+
+        Session(int id) throws Exception {
+            q = new Query(config);
+            q.openConnection();
+            q.prepareStatements();
+            random = new Random(id);
+            String user = "bench" + id;
+            q.transaction_createCustomer(user, user, 1000000000);
+            q.transaction_login(user, user);
+        }
+
+        String[] route() {
+            return routes.get(random.nextInt(routes.size()));
+        }
+
+        /** Searches a direct flight and books it; returns the reservation id or -1. */
+        int book() {
+            String[] r = route();
+            q.transaction_search(r[0], r[1], true, Integer.parseInt(r[2]), 1);
+            return reservationId(q.transaction_book(0));
+        }
+
+        /** Tries {@code count} bookings, to be listed by the reservations benchmark. */
+        void prepare(String op, int count) {
+            if (op.equals("reservations")) {
+                for (int i = 0; i < count; i++) {
+                    book();
+                }
+            }
+        }
+
+        /**
+         * Runs one transaction of type {@code op}.
+         *
+         * @param latency where the time of the transaction is recorded, or null
+         * @return false if the transaction failed
+         */
+        boolean run(String op, LatencyHistogram latency) {
+            long start;
+            boolean ok;
+            switch (op) {
+                case "search": {
+                    String[] r = route();
+                    start = System.nanoTime();
+                    String result = q.transaction_search(r[0], r[1], false, Integer.parseInt(r[2]), 10);
+                    record(latency, start);
+                    ok = !result.startsWith("Failed");
+                    break;
+                }
+                case "book": {
+                    String[] r = route();
+                    q.transaction_search(r[0], r[1], true, Integer.parseInt(r[2]), 1);
+                    start = System.nanoTime();
+                    int rid = reservationId(q.transaction_book(0));
+                    record(latency, start);
+                    ok = rid > 0;
+                    if (ok) {
+                        q.transaction_cancel(rid);
+                    }
+                    break;
+                }
+                case "pay": {
+                    int rid = book();
+                    if (rid < 0) {
+                        return false;
+                    }
+                    start = System.nanoTime();
+                    String result = q.transaction_pay(rid);
+                    record(latency, start);
+                    ok = result.startsWith("Paid");
+                    q.transaction_cancel(rid);
+                    break;
+                }
+                case "reservations": {
+                    start = System.nanoTime();
+                    String result = q.transaction_reservations();
+                    record(latency, start);
+                    ok = result.startsWith("Reservation");
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("unknown transaction: " + op);
+            }
+            return ok;
+        }
+
+        void close() {
+            try {
+                q.closeConnection();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void record(LatencyHistogram latency, long start) {
+        if (latency != null) {
+            latency.record(System.nanoTime() - start);
+        }
+    }
+
+    /** Parses "Booked flight(s), reservation ID: 12". */
+    static int reservationId(String result) {
+        if (!result.startsWith("Booked")) {
+            return -1;
+        }
+        return Integer.parseInt(result.substring(result.lastIndexOf(' ') + 1).trim());
+    }
+
+    /**
+     * Runs {@code op} with {@code sessions} concurrent sessions and prints one result line.
+     */
+    void run(String op, int sessions) throws Exception {
+        Query admin = new Query(config);
+        admin.openConnection();
+        admin.prepareStatements();
+        admin.clearTables();
+        admin.closeConnection();
+
+        List<Session> users = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) {
+            Session s = new Session(i);
+            s.prepare(op, 3);
+            users.add(s);
+        }
+
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong errors = new AtomicLong();
+        // 0 warming up, 1 measuring, 2 stopped
+        AtomicLong phase = new AtomicLong();
+        ExecutorService threads = Executors.newFixedThreadPool(sessions);
+        for (Session s : users) {
+            threads.submit(() -> {
+                long p;
+                while ((p = phase.get()) < 2) {
+                    boolean measured = p == 1;
+                    if (!s.run(op, measured ? latency : null) && measured) {
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+        }
+        Thread.sleep(warmupSeconds * 1000L);
+        phase.set(1);
+        long start = System.nanoTime();
+        Thread.sleep(measureSeconds * 1000L);
+        phase.set(2);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        threads.shutdown();
+        threads.awaitTermination(1, TimeUnit.MINUTES);
+        for (Session s : users) {
+            s.close();
+        }
+
+        System.out.printf("%-12s sessions=%-3d %9.1f ops/s errors=%-5d %s%n",
+            op, sessions, latency.count() / elapsed, errors.get(), latency);
+        if (SearchCache.shared() != null) {
+            System.out.print(SearchCache.shared());
+        }
+    }
+
+    private static int[] ints(String csv) {
+        String[] parts = csv.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String config = System.getProperty("config", FlightService.DBCONFIG_FILENAME);
+        QueryBenchmark benchmark = new QueryBenchmark(config,
+            Integer.getInteger("warmup", 5), Integer.getInteger("seconds", 20));
+
+        Connection conn = FlightsGenerator.connect(config);
+        try {
+            String flights = System.getProperty("flights");
+            if (flights != null) {
+                FlightsGenerator.clear(conn);
+                FlightsGenerator.fromSystemProperties(414).load(config, FlightsGenerator.rowCount(flights),
+                    Integer.getInteger("threads", 4), Integer.getInteger("batch", 20));
+            }
+            benchmark.sampleRoutes(conn, Integer.getInteger("routes", 500));
+        } finally {
+            conn.close();
+        }
+
+        int[] sessions = ints(System.getProperty("sessions", "1,4,16,64"));
+        for (String op : System.getProperty("ops", "search,book,pay,reservations").split(",")) {
+            for (int n : sessions) {
+                benchmark.run(op.trim(), n);
+            }
+        }
+        System.out.print(StatementCache.summary());
+    }
+}
@@ -0,0 +1,231 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * JVM-wide timings of the Query transactions and of the statements they run.
+ *
+ * For every transaction: wall time, JDBC round trips, rows fetched and how many calls ended
+ * with each outcome, the outcome being the response up to its first number. For every
+ * prepared statement: wall time of its executions and rows fetched. Statements are counted
+ * through a proxy put around them when they are prepared, so the sessions pay nothing when
+ * statistics are off: Query only checks for a null {@code QueryStats}. Recording is lock-free.
+ *
+ * Enabled by {@code flightservice.stats}; with {@code flightservice.stats_dump_seconds} the
+ * statistics are also printed to stderr that often.
+ */
+public class QueryStats {
+    private static QueryStats shared;
+
+    /**
+     * Round trips and rows of one session so far, advanced by its statements. A session's
+     * transaction reads them before and after it runs; like the session, they are only used by
+     * one thread at a time.
+     */
+    static class Counters {
+        long roundTrips;
+        long rows;
+    }
+
+    /** Totals of one transaction type or statement. */
+    static class Totals {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong roundTrips = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+        // transactions only
+        final AtomicLong retries = new AtomicLong();
+        final Map<String, AtomicLong> outcomes = new ConcurrentHashMap<>();
+
+        /** Zeroes the totals in place: statement proxies keep writing to the same instance. */
+        void reset() {
+            latency.reset();
+            roundTrips.set(0);
+            rows.set(0);
+            retries.set(0);
+            outcomes.clear();
+        }
+    }
+
+    private final Map<String, Totals> transactions = new ConcurrentHashMap<>();
+    private final Map<String, Totals> statements = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the JVM-wide statistics, creating them on first use.
+     *
+     * @return null if {@code flightservice.stats} is not true
+     */
+    public static synchronized QueryStats shared(Properties config) {
+        if (shared == null && Boolean.parseBoolean(config.getProperty("flightservice.stats", "false").trim())) {
+            shared = new QueryStats();
+            int seconds = Integer.parseInt(config.getProperty("flightservice.stats_dump_seconds", "0").trim());
+            if (seconds > 0) {
+                ScheduledExecutorService dump = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "query-stats");
+                    t.setDaemon(true);
+                    return t;
+                });
+                QueryStats stats = shared;
+                dump.scheduleAtFixedRate(() -> System.err.print(stats), seconds, seconds, TimeUnit.SECONDS);
+            }
+        }
+        return shared;
+    }
+
+    /** @return the JVM-wide statistics if they were enabled, otherwise null */
+    public static synchronized QueryStats shared() {
+        return shared;
+    }
+
+    /**
+     * Runs one transaction of a session and records it under {@code name}.
+     */
+    String record(String name, Counters session, Supplier<String> transaction) {
+        long roundTrips = session.roundTrips;
+        long rows = session.rows;
+        long start = System.nanoTime();
+        String response = null;
+        try {
+            response = transaction.get();
+            return response;
+        } finally {
+            Totals t = transactions.computeIfAbsent(name, k -> new Totals());
+            t.latency.record(System.nanoTime() - start);
+            t.roundTrips.addAndGet(session.roundTrips - roundTrips);
+            t.rows.addAndGet(session.rows - rows);
+            t.outcomes.computeIfAbsent(outcome(response), k -> new AtomicLong()).incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts one more attempt of a transaction, run again after a deadlock or serialization failure.
+     */
+    void retried(String name) {
+        transactions.computeIfAbsent(name, k -> new Totals()).retries.incrementAndGet();
+    }
+
+    /**
+     * @return the response up to its first digit or line end, e.g. "Booked flight(s), reservation ID:"
+     */
+    static String outcome(String response) {
+        if (response == null) {
+            return "exception";
+        }
+        int end = 0;
+        while (end < response.length() && !Character.isDigit(response.charAt(end)) && response.charAt(end) != '\n') {
+            end++;
+        }
+        return end == 0 ? "empty" : response.substring(0, end).trim();
+    }
+
+    /**
+     * @return {@code ps} counting its executions, round trips and rows for {@code session}
+     */
+    PreparedStatement instrument(PreparedStatement ps, String sql, Counters session) {
+        Totals t = statements.computeIfAbsent(sql, k -> new Totals());
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+            new Class<?>[] {PreparedStatement.class}, new StatementHandler(ps, t, session));
+    }
+
+    /** Times the execute methods of a statement and counts the rows of its result sets. */
+    private static final class StatementHandler implements InvocationHandler {
+        private final PreparedStatement target;
+        private final Totals totals;
+        private final Counters session;
+
+        StatementHandler(PreparedStatement target, Totals totals, Counters session) {
+            this.target = target;
+            this.totals = totals;
+            this.session = session;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (!name.startsWith("execute") && !name.equals("getResultSet")) {
+                return call(target, method, args);
+            }
+            if (name.equals("getResultSet")) {
+                return rows((ResultSet) call(target, method, args));
+            }
+            long start = System.nanoTime();
+            Object result = call(target, method, args);
+            totals.latency.record(System.nanoTime() - start);
+            totals.roundTrips.incrementAndGet();
+            session.roundTrips++;
+            return result instanceof ResultSet ? rows((ResultSet) result) : result;
+        }
+
+        private ResultSet rows(ResultSet rs) {
+            if (rs == null) {
+                return null;
+            }
+            return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                new Class<?>[] {ResultSet.class}, (proxy, method, args) -> {
+                    Object result = call(rs, method, args);
+                    if (method.getName().equals("next") && Boolean.TRUE.equals(result)) {
+                        totals.rows.incrementAndGet();
+                        session.rows++;
+                    }
+                    return result;
+                });
+        }
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /** Forgets everything recorded so far. */
+    public void reset() {
+        for (Totals t : transactions.values()) {
+            t.reset();
+        }
+        for (Totals t : statements.values()) {
+            t.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("transactions:\n");
+        for (Map.Entry<String, Totals> e : new TreeMap<>(transactions).entrySet()) {
+            Totals t = e.getValue();
+            if (t.latency.count() == 0 && t.retries.get() == 0) {
+                continue; // nothing since the last reset
+            }
+            long n = Math.max(t.latency.count(), 1);
+            sb.append(String.format("  %-14s round trips/tx=%.1f rows/tx=%.1f retries=%d %s%n", e.getKey(),
+                (double) t.roundTrips.get() / n, (double) t.rows.get() / n, t.retries.get(), t.latency));
+            for (Map.Entry<String, AtomicLong> o : new TreeMap<>(t.outcomes).entrySet()) {
+                sb.append(String.format("    %8d %s%n", o.getValue().get(), o.getKey()));
+            }
+        }
+        sb.append("statements:\n");
+        for (Map.Entry<String, Totals> e : new TreeMap<>(statements).entrySet()) {
+            Totals t = e.getValue();
+            if (t.latency.count() == 0) {
+                continue;
+            }
+            String sql = e.getKey().replaceAll("\\s+", " ");
+            sb.append(String.format("  %s%n    rows=%d %s%n",
+                sql.length() > 100 ? sql.substring(0, 97) + "..." : sql, t.rows.get(), t.latency));
+        }
+        return sb.toString();
+    }
+}
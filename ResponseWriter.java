@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A session's response text, built in a char array that is reused by every transaction.
+ *
+ * Numbers are written digit by digit and flights field by field, so printing a result row
+ * allocates nothing once the array is as large as the session's longest response. The
+ * text is either turned into the String a transaction returns, or written to a stream
+ * through a byte array that is reused as well.
+ */
+public class ResponseWriter {
+    private char[] chars = new char[1024];
+    private byte[] bytes = new byte[0];
+    private int length;
+
+    /** Drops the text written so far. */
+    public void reset() {
+        length = 0;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public ResponseWriter append(char c) {
+        ensure(1);
+        chars[length++] = c;
+        return this;
+    }
+
+    public ResponseWriter append(String s) {
+        int n = s.length();
+        ensure(n);
+        s.getChars(0, n, chars, length);
+        length += n;
+        return this;
+    }
+
+    public ResponseWriter append(int value) {
+        if (value == Integer.MIN_VALUE) {
+            return append(Integer.toString(value));
+        }
+        ensure(11);
+        if (value < 0) {
+            chars[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    /**
+     * Appends one flight in the format of {@code Query.Flight#toString()}, followed by a newline.
+     */
+    public ResponseWriter flight(int fid, int dayOfMonth, String carrierId, String flightNum, String originCity,
+                                 String destCity, int time, int capacity, int price) {
+        return append("ID: ").append(fid)
+            .append(" Day: ").append(dayOfMonth)
+            .append(" Carrier: ").append(String.valueOf(carrierId))
+            .append(" Number: ").append(String.valueOf(flightNum))
+            .append(" Origin: ").append(String.valueOf(originCity))
+            .append(" Dest: ").append(String.valueOf(destCity))
+            .append(" Duration: ").append(time)
+            .append(" Capacity: ").append(capacity)
+            .append(" Price: ").append(price)
+            .append('\n');
+    }
+
+    /**
+     * Writes the text to {@code out} in the given charset, which must encode ASCII as itself
+     * (UTF-8, ISO-8859-1, ...). Plain ASCII text is copied without turning it into a String.
+     */
+    public void writeTo(OutputStream out, Charset charset) throws IOException {
+        if (toAscii()) {
+            out.write(bytes, 0, length);
+        } else {
+            out.write(toString().getBytes(charset));
+        }
+    }
+
+    /**
+     * Writes the text to {@code out}. Plain ASCII text is copied as bytes, which every charset
+     * a console uses encodes the same way; other text is printed in the stream's own charset.
+     */
+    public void writeTo(PrintStream out) {
+        if (toAscii()) {
+            out.write(bytes, 0, length);
+        } else {
+            out.print(toString());
+        }
+    }
+
+    /** Copies the text into {@code bytes}, unless it is not plain ASCII. */
+    private boolean toAscii() {
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c >= 0x80) {
+                return false;
+            }
+            bytes[i] = (byte) c;
+        }
+        return true;
+    }
+
+    private void ensure(int n) {
+        if (length + n > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(length + n, chars.length * 2));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+}
@@ -0,0 +1,208 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * JVM-wide cache of search results keyed by (origin, destination, day, direct, number of
+ * itineraries), shared by every {@code Query}.
+ *
+ * An entry holds the printed output and the itineraries needed to book from it. Entries
+ * are dropped when the cache is full (least recently used first), when they are older than
+ * the time to live, and whenever a booking or cancellation changes the Booking row of one of
+ * their flights. Changes made by other processes are only seen once the entry expires.
+ */
+public class SearchCache {
+    private static SearchCache shared;
+
+    /** A cached search result. */
+    static class Entry {
+        final String output;
+        final ItineraryBuffer itineraries;
+        final long expires;
+
+        Entry(String output, ItineraryBuffer itineraries, long expires) {
+            this.output = output;
+            this.itineraries = itineraries;
+            this.expires = expires;
+        }
+    }
+
+    private final int capacity;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // fid -> keys of the entries that print it
+    private final HashMap<Integer, Set<String>> keysByFid = new HashMap<>();
+    // bumped by every invalidation, see put()
+    private long invalidations;
+
+    private long hits;
+    private long misses;
+    private long expirations;
+    private long evictions;
+    private long invalidatedEntries;
+    private final LatencyHistogram invalidationLatency = new LatencyHistogram();
+
+    /**
+     * Returns the JVM-wide cache configured by {@code flightservice.search_cache_size} and
+     * {@code flightservice.search_cache_ttl_ms}, creating it on first use.
+     *
+     * @return null if the cache is disabled (size 0)
+     */
+    public static synchronized SearchCache shared(Properties config) {
+        if (shared == null) {
+            int size = Integer.parseInt(config.getProperty("flightservice.search_cache_size", "0").trim());
+            if (size <= 0) {
+                return null;
+            }
+            long ttl = Long.parseLong(config.getProperty("flightservice.search_cache_ttl_ms", "60000").trim());
+            shared = new SearchCache(size, ttl);
+        }
+        return shared;
+    }
+
+    /** @return the JVM-wide cache if one was created, otherwise null */
+    public static synchronized SearchCache shared() {
+        return shared;
+    }
+
+    /**
+     * @param capacity maximum number of cached searches
+     * @param ttlMillis how long a result may be served
+     */
+    public SearchCache(int capacity, long ttlMillis) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("search cache size must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.ttlNanos = ttlMillis * 1000000L;
+    }
+
+    static String key(String originCity, String destinationCity, int dayOfMonth, boolean directFlight,
+                      int numberOfItineraries) {
+        return originCity + '\n' + destinationCity + '\n' + dayOfMonth + '\n' + directFlight + '\n' + numberOfItineraries;
+    }
+
+    /**
+     * @return the cached result, or null if there is none or it expired
+     */
+    public synchronized Entry get(String key) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        if (System.nanoTime() - e.expires > 0) {
+            expirations++;
+            misses++;
+            remove(key);
+            return null;
+        }
+        hits++;
+        return e;
+    }
+
+    /**
+     * Returns a stamp to pass to {@link #put}, taken before the search reads the database.
+     */
+    public synchronized long stamp() {
+        return invalidations;
+    }
+
+    /**
+     * Caches a result, unless a flight was invalidated since {@code stamp} was taken: the
+     * search may then have read a Booking row that was changed before the result got here.
+     * The itineraries are copied.
+     */
+    public synchronized void put(String key, String output, ItineraryBuffer itineraries, long stamp) {
+        if (stamp != invalidations) {
+            return;
+        }
+        remove(key);
+        entries.put(key, new Entry(output, itineraries.copy(), System.nanoTime() + ttlNanos));
+        for (int i = 0; i < itineraries.size(); i++) {
+            for (int leg = 0; leg < itineraries.flightCount(i); leg++) {
+                Set<String> keys = keysByFid.get(itineraries.fid(i, leg));
+                if (keys == null) {
+                    keys = new HashSet<>();
+                    keysByFid.put(itineraries.fid(i, leg), keys);
+                }
+                keys.add(key);
+            }
+        }
+        if (entries.size() > capacity) {
+            Iterator<String> eldest = entries.keySet().iterator();
+            remove(eldest.next());
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops every cached search that prints flight {@code fid}.
+     */
+    public synchronized void invalidate(int fid) {
+        long start = System.nanoTime();
+        invalidations++;
+        Set<String> keys = keysByFid.remove(fid);
+        if (keys != null) {
+            for (String key : keys) {
+                if (remove(key)) {
+                    invalidatedEntries++;
+                }
+            }
+        }
+        invalidationLatency.record(System.nanoTime() - start);
+    }
+
+    private boolean remove(String key) {
+        Entry e = entries.remove(key);
+        if (e == null) {
+            return false;
+        }
+        for (int i = 0; i < e.itineraries.size(); i++) {
+            for (int leg = 0; leg < e.itineraries.flightCount(i); leg++) {
+                int fid = e.itineraries.fid(i, leg);
+                Set<String> keys = keysByFid.get(fid);
+                if (keys != null) {
+                    keys.remove(key);
+                    if (keys.isEmpty()) {
+                        keysByFid.remove(fid);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /** @return entries dropped because a booking or cancellation changed one of their flights */
+    public synchronized long invalidatedEntries() {
+        return invalidatedEntries;
+    }
+
+    /** @return time spent in {@link #invalidate}, one value per call */
+    public LatencyHistogram invalidationLatency() {
+        return invalidationLatency;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("search cache: size=%d/%d hits=%d misses=%d hit rate=%.1f%% expirations=%d evictions=%d "
+                + "invalidations=%d invalidated entries=%d%nsearch cache invalidation latency: %s%n",
+            entries.size(), capacity, hits, misses, hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses),
+            expirations, evictions, invalidations, invalidatedEntries, invalidationLatency);
+    }
+}
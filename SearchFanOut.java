@@ -0,0 +1,156 @@
+import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the one-stop half of a search on a connection of its own while the session's
+ * connection runs the direct half, so that a search takes about as long as the slower of
+ * the two queries instead of both.
+ *
+ * One executor and one pool of connections are shared by every session in the JVM. Tasks
+ * run on virtual threads when the JVM has them (Java 21 and later), otherwise on cached
+ * daemon threads. A one-stop query that has not finished within the timeout is given up and
+ * cancelled on the server, so that its connection goes back to the pool, and the search only
+ * prints the direct flights.
+ */
+public class SearchFanOut {
+    private static SearchFanOut shared;
+
+    private final ConnectionPool pool;
+    private final ExecutorService executor;
+    private final long timeoutMillis;
+
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Returns the JVM-wide fan-out configured by {@code flightservice.search_parallel_connections}
+     * and {@code flightservice.search_parallel_timeout_ms}, creating it on first use.
+     */
+    public static synchronized SearchFanOut shared(String configFilename, Properties config) {
+        if (shared == null) {
+            int connections = Integer.parseInt(config.getProperty("flightservice.search_parallel_connections", "8").trim());
+            long timeout = Long.parseLong(config.getProperty("flightservice.search_parallel_timeout_ms", "1000").trim());
+            shared = new SearchFanOut(new ConnectionPool(configFilename, connections, timeout), timeout);
+        }
+        return shared;
+    }
+
+    /**
+     * @param pool connections that run the one-stop queries
+     * @param timeoutMillis how long a search waits for its one-stop itineraries
+     */
+    public SearchFanOut(ConnectionPool pool, long timeoutMillis) {
+        this.pool = pool;
+        this.timeoutMillis = timeoutMillis;
+        this.executor = VirtualThreads.newExecutor("search-fan-out");
+    }
+
+    /**
+     * Starts reading the best {@code limit} one-stop itineraries on a pooled connection.
+     */
+    public Future<ItineraryCursor> twoHop(String originCity, String destinationCity, int dayOfMonth, int limit) {
+        searches.incrementAndGet();
+        Running running = new Running();
+        FutureTask<ItineraryCursor> task = new FutureTask<ItineraryCursor>(() -> {
+            Query backend = pool.borrow();
+            try {
+                if (!running.start(backend)) {
+                    throw new CancellationException();
+                }
+                return BufferedCursor.copy(backend.openTwoHop(originCity, destinationCity, dayOfMonth, limit), limit);
+            } finally {
+                running.done();
+                pool.release(backend);
+            }
+        }) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                // interrupting the thread does not stop a query the server is running
+                running.cancel();
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        executor.execute(task);
+        return task;
+    }
+
+    /** The back end a one-stop query runs on, while it runs, so that the query can be cancelled. */
+    private static final class Running {
+        private Query backend;
+        private boolean cancelled;
+
+        /** @return false if the search already gave up on the query */
+        synchronized boolean start(Query q) {
+            backend = q;
+            return !cancelled;
+        }
+
+        /** Called before the back end goes back to the pool, so a late cancel cannot reach another search. */
+        synchronized void done() {
+            backend = null;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (backend != null) {
+                backend.cancelTwoHop();
+            }
+        }
+    }
+
+    /**
+     * Waits for the itineraries of {@link #twoHop}, at most until the timeout has passed since
+     * {@code startNanos}.
+     *
+     * @return the itineraries, or null if the query failed or was too slow
+     */
+    public ItineraryCursor await(Future<ItineraryCursor> twoHop, long startNanos) {
+        long left = TimeUnit.MILLISECONDS.toNanos(timeoutMillis) - (System.nanoTime() - startNanos);
+        try {
+            return twoHop.get(Math.max(left, 0), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+            twoHop.cancel(true);
+        } catch (ExecutionException e) {
+            failures.incrementAndGet();
+            e.getCause().printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            twoHop.cancel(true);
+        }
+        return null;
+    }
+
+    public long searches() {
+        return searches.get();
+    }
+
+    /** @return searches that printed only direct flights because the one-stop query was too slow */
+    public long timeouts() {
+        return timeouts.get();
+    }
+
+    public long failures() {
+        return failures.get();
+    }
+
+    /** Closes the pooled connections; the executor threads are daemons. */
+    public void close() {
+        executor.shutdown();
+        pool.close();
+    }
+
+    @Override
+    public String toString() {
+        return "search fan-out: searches=" + searches() + " timeouts=" + timeouts() + " failures=" + failures() + "\n"
+            + pool;
+    }
+}
@@ -0,0 +1,149 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prepared statements of one physical connection, keyed by their SQL text.
+ *
+ * A statement is prepared the first time it is asked for and then reused, so opening a
+ * session no longer costs one prepare per statement in the catalog. At most
+ * {@code capacity} statements are kept; the least recently used one is closed when the
+ * limit is exceeded.
+ *
+ * Like the connection it belongs to, a cache must only be used by one thread at a time.
+ */
+public class StatementCache {
+    // totals over every cache in this JVM
+    private static final AtomicLong totalHits = new AtomicLong();
+    private static final AtomicLong totalMisses = new AtomicLong();
+    private static final AtomicLong totalEvictions = new AtomicLong();
+
+    private final Connection conn;
+    private final int capacity;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+    // statements are instrumented for these, when not null
+    private final QueryStats stats;
+    private final QueryStats.Counters session;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public StatementCache(Connection conn, int capacity) {
+        this(conn, capacity, null, null);
+    }
+
+    /**
+     * @param stats where the statements record their executions, or null
+     * @param session round trips and rows of the session owning the connection
+     */
+    public StatementCache(Connection conn, int capacity, QueryStats stats, QueryStats.Counters session) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("statement cache capacity must be positive: " + capacity);
+        }
+        this.conn = conn;
+        this.capacity = capacity;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true);
+        this.stats = stats;
+        this.session = session;
+    }
+
+    /**
+     * Returns the prepared statement for {@code sql}, preparing it on first use. Parameters
+     * set by a previous user of the statement are cleared.
+     */
+    public PreparedStatement get(String sql) throws SQLException {
+        return get(sql, ResultSet.TYPE_FORWARD_ONLY);
+    }
+
+    /**
+     * Like {@link #get(String)}, for read-only result sets of {@code resultSetType}. Each type
+     * gets a statement of its own.
+     */
+    public PreparedStatement get(String sql, int resultSetType) throws SQLException {
+        String key = resultSetType == ResultSet.TYPE_FORWARD_ONLY ? sql : resultSetType + ":" + sql;
+        PreparedStatement ps = statements.get(key);
+        if (ps != null) {
+            hits++;
+            totalHits.incrementAndGet();
+            ps.clearParameters();
+            return ps;
+        }
+        misses++;
+        totalMisses.incrementAndGet();
+        ps = conn.prepareStatement(sql, resultSetType, ResultSet.CONCUR_READ_ONLY);
+        if (stats != null) {
+            ps = stats.instrument(ps, sql, session);
+        }
+        statements.put(key, ps);
+        if (statements.size() > capacity) {
+            evictEldest();
+        }
+        return ps;
+    }
+
+    private void evictEldest() {
+        Iterator<Map.Entry<String, PreparedStatement>> it = statements.entrySet().iterator();
+        PreparedStatement eldest = it.next().getValue();
+        it.remove();
+        evictions++;
+        totalEvictions.incrementAndGet();
+        try {
+            eldest.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Closes every cached statement. */
+    public void close() {
+        for (PreparedStatement ps : statements.values()) {
+            try {
+                ps.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        statements.clear();
+    }
+
+    public int size() {
+        return statements.size();
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    public long evictions() {
+        return evictions;
+    }
+
+    public static long totalHits() {
+        return totalHits.get();
+    }
+
+    public static long totalMisses() {
+        return totalMisses.get();
+    }
+
+    public static long totalEvictions() {
+        return totalEvictions.get();
+    }
+
+    /** JVM-wide counters, e.g. "statements: hits=10 misses=3 evictions=0 hit rate=76.9%". */
+    public static String summary() {
+        long h = totalHits(), m = totalMisses();
+        return String.format("statements: hits=%d misses=%d evictions=%d hit rate=%.1f%%%n",
+            h, m, totalEvictions(), h + m == 0 ? 0.0 : 100.0 * h / (h + m));
+    }
+}
@@ -0,0 +1,26 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executors that start one virtual thread per task when the JVM has them (Java 21 and
+ * later). This source is built for Java 8, so the factory is looked up reflectively.
+ */
+final class VirtualThreads {
+    private VirtualThreads() {
+    }
+
+    /**
+     * @param name of the daemon threads of the cached pool used when there are no virtual threads
+     */
+    static ExecutorService newExecutor(String name) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
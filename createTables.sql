@@ -92,3 +92,269 @@ CREATE TABLE Reservation (
     FOREIGN KEY(fid1) REFERENCES Booking(fid),
     FOREIGN KEY(fid2) REFERENCES Booking(fid)
 );
+
+-- Named id counters. next_id is the next id to hand out; clients reserve ids
+-- with UPDATE ... SET next_id = next_id + n, so ids are never reused even after
+-- the rows that used them are deleted.
+DROP TABLE IF EXISTS IdBlocks;
+CREATE TABLE IdBlocks (
+    name VARCHAR(32) PRIMARY KEY,
+    next_id INT NOT NULL
+);
+INSERT INTO IdBlocks VALUES ('reservation', 1);
+
+-- Covering indexes, replayed by IndexAdvisor to compare plan costs without and with them.
+-- Searches seek on (origin_city, day_of_month, dest_city) and read direct flights already
+-- ordered by actual_time; both sides of the one-stop self-join seek on the same index.
+DROP INDEX IF EXISTS Flights_origin_day_dest ON FLIGHTS;
+CREATE INDEX Flights_origin_day_dest ON FLIGHTS (origin_city, day_of_month, dest_city, actual_time)
+    INCLUDE (carrier_id, flight_num, capacity, price);
+
+-- A user's reservations in rid order. Its username prefix also serves lookups by username
+-- alone, so no separate Reservation(username) index is needed.
+DROP INDEX IF EXISTS Reservation_username_rid ON Reservation;
+CREATE INDEX Reservation_username_rid ON Reservation (username, rid)
+    INCLUDE (fid1, fid2, paid);
+
+-- Precomputed one-stop itineraries: the best @depth ones of every (origin_city, dest_city,
+-- day_of_month), ranked like the search self-join by total time, then fid1, then fid2.
+-- Searches read them with one range scan of the primary key when
+-- flightservice.search_connections is set. Fill it with EXEC BuildConnections <depth>
+-- after loading FLIGHTS; the trigger below then keeps it current.
+DROP TRIGGER IF EXISTS Flights_refresh_connections;
+DROP PROCEDURE IF EXISTS BuildConnections;
+DROP VIEW IF EXISTS RankedConnections;
+DROP TABLE IF EXISTS Connections;
+DROP TABLE IF EXISTS ConnectionsDepth;
+CREATE TABLE Connections (
+    origin_city varchar(34) NOT NULL,
+    dest_city varchar(34) NOT NULL,
+    day_of_month int NOT NULL,
+    pos int NOT NULL,    -- 1 is the shortest
+    fid1 int NOT NULL,
+    fid2 int NOT NULL,
+    total_time int NOT NULL,
+    PRIMARY KEY (origin_city, dest_city, day_of_month, pos)
+);
+
+-- Number of itineraries kept per route; no row means Connections is not maintained.
+CREATE TABLE ConnectionsDepth (
+    depth int NOT NULL
+);
+
+-- Seeks of the trigger below for the routes ending at a changed flight's destination: on
+-- Connections, and on the second legs of the self-join.
+CREATE INDEX Connections_dest_day ON Connections (dest_city, day_of_month);
+DROP INDEX IF EXISTS Flights_dest_day ON FLIGHTS;
+CREATE INDEX Flights_dest_day ON FLIGHTS (dest_city, day_of_month)
+    INCLUDE (origin_city, actual_time);
+GO
+
+CREATE VIEW RankedConnections AS
+SELECT F.origin_city, S.dest_city, F.day_of_month,
+    ROW_NUMBER() OVER (PARTITION BY F.origin_city, S.dest_city, F.day_of_month
+                       ORDER BY F.actual_time + S.actual_time, F.fid, S.fid) AS pos,
+    F.fid AS fid1, S.fid AS fid2, F.actual_time + S.actual_time AS total_time
+FROM FLIGHTS AS F
+INNER JOIN FLIGHTS AS S ON S.origin_city = F.dest_city AND S.day_of_month = F.day_of_month
+WHERE F.actual_time IS NOT NULL AND S.actual_time IS NOT NULL;
+GO
+
+-- Rebuilds Connections from scratch one day at a time, keeping the best @depth itineraries.
+CREATE PROCEDURE BuildConnections @depth INT AS
+BEGIN
+    SET NOCOUNT ON;
+    DELETE FROM ConnectionsDepth;
+    TRUNCATE TABLE Connections;
+    DECLARE @day INT = 1;
+    WHILE @day <= 31
+    BEGIN
+        INSERT INTO Connections (origin_city, dest_city, day_of_month, pos, fid1, fid2, total_time)
+        SELECT origin_city, dest_city, day_of_month, pos, fid1, fid2, total_time
+        FROM RankedConnections
+        WHERE day_of_month = @day AND pos <= @depth;
+        SET @day = @day + 1;
+    END
+    INSERT INTO ConnectionsDepth VALUES (@depth);
+END;
+GO
+
+-- A changed flight can only move the ranking of routes it starts (same origin, same day) or
+-- ends (same destination, same day), so only those routes are recomputed, each set with
+-- index seeks on its own: the ranking is RankedConnections restricted to those routes.
+-- Updates that leave every ranked column alone, e.g. of capacity or price, change nothing.
+CREATE TRIGGER Flights_refresh_connections ON FLIGHTS AFTER INSERT, UPDATE, DELETE AS
+BEGIN
+    SET NOCOUNT ON;
+    IF EXISTS (SELECT * FROM inserted) AND EXISTS (SELECT * FROM deleted)
+        AND NOT (UPDATE(fid) OR UPDATE(day_of_month) OR UPDATE(origin_city) OR UPDATE(dest_city)
+                 OR UPDATE(actual_time))
+        RETURN;
+    DECLARE @depth INT = (SELECT depth FROM ConnectionsDepth);
+    IF @depth IS NULL RETURN;
+
+    DECLARE @origins TABLE (day_of_month INT, origin_city VARCHAR(34), PRIMARY KEY (origin_city, day_of_month));
+    INSERT INTO @origins
+    SELECT day_of_month, origin_city FROM inserted
+    UNION
+    SELECT day_of_month, origin_city FROM deleted;
+
+    DECLARE @dests TABLE (day_of_month INT, dest_city VARCHAR(34), PRIMARY KEY (dest_city, day_of_month));
+    INSERT INTO @dests
+    SELECT day_of_month, dest_city FROM inserted
+    UNION
+    SELECT day_of_month, dest_city FROM deleted;
+
+    DELETE C FROM Connections AS C
+    INNER JOIN @origins AS X ON X.origin_city = C.origin_city AND X.day_of_month = C.day_of_month;
+
+    DELETE C FROM Connections AS C
+    INNER JOIN @dests AS X ON X.dest_city = C.dest_city AND X.day_of_month = C.day_of_month;
+
+    -- routes starting where a changed flight starts
+    INSERT INTO Connections (origin_city, dest_city, day_of_month, pos, fid1, fid2, total_time)
+    SELECT origin_city, dest_city, day_of_month, pos, fid1, fid2, total_time
+    FROM (
+        SELECT F.origin_city, S.dest_city, F.day_of_month,
+            ROW_NUMBER() OVER (PARTITION BY F.origin_city, S.dest_city, F.day_of_month
+                               ORDER BY F.actual_time + S.actual_time, F.fid, S.fid) AS pos,
+            F.fid AS fid1, S.fid AS fid2, F.actual_time + S.actual_time AS total_time
+        FROM @origins AS X
+        INNER JOIN FLIGHTS AS F ON F.origin_city = X.origin_city AND F.day_of_month = X.day_of_month
+        INNER JOIN FLIGHTS AS S ON S.origin_city = F.dest_city AND S.day_of_month = F.day_of_month
+        WHERE F.actual_time IS NOT NULL AND S.actual_time IS NOT NULL
+    ) AS R
+    WHERE R.pos <= @depth;
+
+    -- routes ending where a changed flight ends, unless the first branch already did them
+    INSERT INTO Connections (origin_city, dest_city, day_of_month, pos, fid1, fid2, total_time)
+    SELECT origin_city, dest_city, day_of_month, pos, fid1, fid2, total_time
+    FROM (
+        SELECT F.origin_city, S.dest_city, F.day_of_month,
+            ROW_NUMBER() OVER (PARTITION BY F.origin_city, S.dest_city, F.day_of_month
+                               ORDER BY F.actual_time + S.actual_time, F.fid, S.fid) AS pos,
+            F.fid AS fid1, S.fid AS fid2, F.actual_time + S.actual_time AS total_time
+        FROM @dests AS X
+        INNER JOIN FLIGHTS AS S ON S.dest_city = X.dest_city AND S.day_of_month = X.day_of_month
+        INNER JOIN FLIGHTS AS F ON F.dest_city = S.origin_city AND F.day_of_month = S.day_of_month
+        WHERE F.actual_time IS NOT NULL AND S.actual_time IS NOT NULL
+        AND NOT EXISTS (SELECT * FROM @origins AS O
+                        WHERE O.origin_city = F.origin_city AND O.day_of_month = F.day_of_month)
+    ) AS R
+    WHERE R.pos <= @depth;
+END;
+GO
+
+-- Reads (searches, reservation listings) run in autocommit at READ COMMITTED. With row
+-- versioning they read the last committed version instead of waiting on the locks of
+-- bookings, payments and cancellations. Open transactions of other connections are
+-- rolled back to switch it on.
+ALTER DATABASE CURRENT SET READ_COMMITTED_SNAPSHOT ON WITH ROLLBACK IMMEDIATE;
+GO
+
+-- Book, pay and cancel in one round trip each, called by Query when
+-- flightservice.use_procedures is set. Each procedure runs the statements of the client-side
+-- transaction as one transaction, at the same isolation level, and returns one row whose
+-- status is 0 on success. Deadlocks and other errors abort the transaction and are raised
+-- to the caller, which runs the call again.
+DROP PROCEDURE IF EXISTS BookReservation;
+DROP PROCEDURE IF EXISTS PayReservation;
+DROP PROCEDURE IF EXISTS CancelReservation;
+GO
+
+-- @fid2 is NULL for a direct flight. @rid 0 takes the next ID from IdBlocks, otherwise it is
+-- an ID the client reserved in advance. Status 1: a flight is full; 2: the user already has
+-- a reservation on that day.
+CREATE PROCEDURE BookReservation @username VARCHAR(255), @fid1 INT, @fid2 INT, @day INT, @rid INT AS
+BEGIN
+    SET NOCOUNT ON;
+    SET XACT_ABORT ON;
+    SET TRANSACTION ISOLATION LEVEL SERIALIZABLE;
+    BEGIN TRANSACTION;
+
+    -- takes one seat on each flight that is not full; every flight must get one
+    MERGE Booking WITH (HOLDLOCK) AS B
+    USING (SELECT fid, capacity FROM Flights WHERE fid IN (@fid1, @fid2)) AS F ON B.fid = F.fid
+    WHEN MATCHED AND B.count < F.capacity THEN UPDATE SET count = B.count + 1
+    WHEN NOT MATCHED AND F.capacity > 0 THEN INSERT (fid, count) VALUES (F.fid, 1);
+    IF @@ROWCOUNT < CASE WHEN @fid2 IS NULL THEN 1 ELSE 2 END
+    BEGIN
+        ROLLBACK TRANSACTION;
+        SELECT 1 AS status, 0 AS rid;
+        RETURN;
+    END
+
+    IF @rid = 0
+        UPDATE IdBlocks SET @rid = next_id, next_id = next_id + 1 WHERE name = 'reservation';
+
+    BEGIN TRY
+        INSERT INTO Reservation VALUES (@username, @rid, @fid1, @fid2, @day, 'false');
+    END TRY
+    BEGIN CATCH
+        IF XACT_STATE() <> 0 ROLLBACK TRANSACTION;
+        IF ERROR_NUMBER() NOT IN (2601, 2627) THROW;
+        SELECT 2 AS status, 0 AS rid;
+        RETURN;
+    END CATCH
+
+    COMMIT TRANSACTION;
+    SELECT 0 AS status, @rid AS rid;
+END;
+GO
+
+-- Status 1: the user has no unpaid reservation @rid; 2: the balance does not cover the cost.
+-- balance is what the user has left, or has when refused.
+CREATE PROCEDURE PayReservation @username VARCHAR(255), @rid INT AS
+BEGIN
+    SET NOCOUNT ON;
+    SET XACT_ABORT ON;
+    SET TRANSACTION ISOLATION LEVEL REPEATABLE READ;
+    BEGIN TRANSACTION;
+
+    DECLARE @balance INT, @cost INT;
+    SELECT @balance = balance FROM Users WITH (UPDLOCK, ROWLOCK) WHERE username = @username;
+    SELECT @cost = F1.price + ISNULL(F2.price, 0)
+    FROM Reservation AS R WITH (UPDLOCK, ROWLOCK)
+    INNER JOIN Flights AS F1 ON F1.fid = R.fid1
+    LEFT JOIN Flights AS F2 ON F2.fid = R.fid2
+    WHERE R.username = @username AND R.rid = @rid AND R.paid = 'false';
+
+    IF @cost IS NULL OR @cost > @balance
+    BEGIN
+        ROLLBACK TRANSACTION;
+        SELECT CASE WHEN @cost IS NULL THEN 1 ELSE 2 END AS status, @balance AS balance, @cost AS cost;
+        RETURN;
+    END
+
+    UPDATE Reservation SET paid = 'true' WHERE rid = @rid;
+    UPDATE Users SET balance = @balance - @cost WHERE username = @username;
+    COMMIT TRANSACTION;
+    SELECT 0 AS status, @balance - @cost AS balance, @cost AS cost;
+END;
+GO
+
+-- Status 1: the user has no reservation @rid. fid1 and fid2 are the flights whose seats were
+-- given back, fid2 0 for a direct flight.
+CREATE PROCEDURE CancelReservation @username VARCHAR(255), @rid INT AS
+BEGIN
+    SET NOCOUNT ON;
+    SET XACT_ABORT ON;
+    SET TRANSACTION ISOLATION LEVEL REPEATABLE READ;
+    BEGIN TRANSACTION;
+
+    DECLARE @fid1 INT, @fid2 INT;
+    SELECT @fid1 = fid1, @fid2 = fid2 FROM Reservation WITH (UPDLOCK, ROWLOCK)
+    WHERE username = @username AND rid = @rid;
+    IF @fid1 IS NULL
+    BEGIN
+        ROLLBACK TRANSACTION;
+        SELECT 1 AS status, 0 AS fid1, 0 AS fid2;
+        RETURN;
+    END
+
+    DELETE FROM Reservation WHERE username = @username AND rid = @rid;
+    UPDATE Booking SET count = count - 1 WHERE fid IN (@fid1, @fid2) AND count > 0;
+    COMMIT TRANSACTION;
+    SELECT 0 AS status, @fid1 AS fid1, ISNULL(@fid2, 0) AS fid2;
+END;
+GO
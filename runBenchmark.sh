@@ -0,0 +1,22 @@
+#!/bin/bash
+
+if [[ "$#" -lt 2 ]]; then
+  echo "Usage: runBenchmark.sh <source folder> <output folder> [-Dsetting=value ...]"
+  echo "Compiles java files in <source folder> and runs QueryBenchmark against the database in dbconn.properties"
+  echo "Settings are described in QueryBenchmark.java, e.g. -Dsessions=1,4 -Dops=search -Dflights=1000000"
+  echo "WARNING: output folder is initially deleted and recreated, and the customer tables are cleared!!!"
+  exit 1
+fi
+
+src=$1
+out=$2
+shift 2
+
+rm -rf $out
+mkdir $out
+
+echo "compiling from " $src
+javac -cp lib/junit-4.12.jar:lib/hamcrest-core-1.3.jar:./lib/sqljdbc4.jar:$out -d $out $src/*.java
+
+# run the benchmark
+java "$@" -cp lib/junit-4.12.jar:lib/hamcrest-core-1.3.jar:./lib/sqljdbc4.jar:$out QueryBenchmark
@@ -0,0 +1,22 @@
+#!/bin/bash
+
+if [[ "$#" -lt 2 ]]; then
+  echo "Usage: runLoad.sh <source folder> <output folder> [-Dsetting=value ...]"
+  echo "Compiles java files in <source folder> and runs LoadDriver against the database in dbconn.properties"
+  echo "Settings are described in LoadDriver.java, e.g. -Dusers=5000 -Drate=200 -Dpool=32 -Dcases=cases"
+  echo "WARNING: output folder is initially deleted and recreated, and the customer tables are cleared!!!"
+  exit 1
+fi
+
+src=$1
+out=$2
+shift 2
+
+rm -rf $out
+mkdir $out
+
+echo "compiling from " $src
+javac -cp lib/junit-4.12.jar:lib/hamcrest-core-1.3.jar:./lib/sqljdbc4.jar:$out -d $out $src/*.java
+
+# run the load test
+java "$@" -cp lib/junit-4.12.jar:lib/hamcrest-core-1.3.jar:./lib/sqljdbc4.jar:$out LoadDriver